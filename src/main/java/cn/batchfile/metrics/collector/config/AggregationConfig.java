@@ -0,0 +1,81 @@
+package cn.batchfile.metrics.collector.config;
+
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties("aggregation")
+public class AggregationConfig {
+
+	private boolean enabled = false;
+	private int delay = 15;
+	private List<Rule> rules;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getDelay() {
+		return delay;
+	}
+
+	public void setDelay(int delay) {
+		this.delay = delay;
+	}
+
+	public List<Rule> getRules() {
+		return rules;
+	}
+
+	public void setRules(List<Rule> rules) {
+		this.rules = rules;
+	}
+
+	public static class Rule {
+
+		private String metric;
+		private List<String> by;
+		private String op = "sum";
+		private String name;
+
+		public String getMetric() {
+			return metric;
+		}
+
+		public void setMetric(String metric) {
+			this.metric = metric;
+		}
+
+		public List<String> getBy() {
+			return by;
+		}
+
+		public void setBy(List<String> by) {
+			this.by = by;
+		}
+
+		public String getOp() {
+			return op;
+		}
+
+		public void setOp(String op) {
+			this.op = op;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+	}
+
+}
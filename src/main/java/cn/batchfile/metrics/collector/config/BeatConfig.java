@@ -12,7 +12,20 @@ public class BeatConfig {
 	private int period;
 	private String eureka;
 	private List<String> hosts;
+	private List<String> includes;
 	private List<String> excludes;
+	private int timeout = 10;
+	private int maxConnections = 256;
+	private int maxConnectionsPerHost = 2;
+	private int ioThreads = Runtime.getRuntime().availableProcessors();
+	private int failureThreshold = 3;
+	private int backoff = 10;
+	private int maxBackoff = 600;
+	private int sampleLimit = 0;
+	private int familySampleLimit = 0;
+	private String sampleLimitAction = "reject";
+	private int discoveryConcurrency = 16;
+	private boolean eurekaDelta = true;
 
 	public int getPeriod() {
 		return period;
@@ -38,6 +51,14 @@ public class BeatConfig {
 		this.hosts = hosts;
 	}
 
+	public List<String> getIncludes() {
+		return includes;
+	}
+
+	public void setIncludes(List<String> includes) {
+		this.includes = includes;
+	}
+
 	public List<String> getExcludes() {
 		return excludes;
 	}
@@ -46,4 +67,100 @@ public class BeatConfig {
 		this.excludes = excludes;
 	}
 
+	public int getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	public void setIoThreads(int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public int getBackoff() {
+		return backoff;
+	}
+
+	public void setBackoff(int backoff) {
+		this.backoff = backoff;
+	}
+
+	public int getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	public void setMaxBackoff(int maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	public int getSampleLimit() {
+		return sampleLimit;
+	}
+
+	public void setSampleLimit(int sampleLimit) {
+		this.sampleLimit = sampleLimit;
+	}
+
+	public int getFamilySampleLimit() {
+		return familySampleLimit;
+	}
+
+	public void setFamilySampleLimit(int familySampleLimit) {
+		this.familySampleLimit = familySampleLimit;
+	}
+
+	public String getSampleLimitAction() {
+		return sampleLimitAction;
+	}
+
+	public void setSampleLimitAction(String sampleLimitAction) {
+		this.sampleLimitAction = sampleLimitAction;
+	}
+
+	public int getDiscoveryConcurrency() {
+		return discoveryConcurrency;
+	}
+
+	public void setDiscoveryConcurrency(int discoveryConcurrency) {
+		this.discoveryConcurrency = discoveryConcurrency;
+	}
+
+	public boolean isEurekaDelta() {
+		return eurekaDelta;
+	}
+
+	public void setEurekaDelta(boolean eurekaDelta) {
+		this.eurekaDelta = eurekaDelta;
+	}
+
 }
@@ -0,0 +1,65 @@
+package cn.batchfile.metrics.collector.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties("cache")
+public class CacheConfig {
+
+	private boolean offHeap = true;
+	private int initialCapacity = 1024 * 1024;
+	private String path = System.getProperty("user.home") + "/.spring-boot-metrics-collector";
+	private int flushInterval = 10;
+	private long walMaxSize = 64 * 1024 * 1024;
+	private int ttl = 1800;
+
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	public void setOffHeap(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+
+	public int getInitialCapacity() {
+		return initialCapacity;
+	}
+
+	public void setInitialCapacity(int initialCapacity) {
+		this.initialCapacity = initialCapacity;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public int getFlushInterval() {
+		return flushInterval;
+	}
+
+	public void setFlushInterval(int flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	public long getWalMaxSize() {
+		return walMaxSize;
+	}
+
+	public void setWalMaxSize(long walMaxSize) {
+		this.walMaxSize = walMaxSize;
+	}
+
+	public int getTtl() {
+		return ttl;
+	}
+
+	public void setTtl(int ttl) {
+		this.ttl = ttl;
+	}
+
+}
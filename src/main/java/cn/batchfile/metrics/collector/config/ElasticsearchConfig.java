@@ -17,6 +17,8 @@ public class ElasticsearchConfig {
 	private int bulkMaxSize;
 	private int timeout;
 	private boolean omitZero;
+	private String document = "value";
+	private int heartbeat;
 
 	public boolean isEnabled() {
 		return enabled;
@@ -82,4 +84,20 @@ public class ElasticsearchConfig {
 		this.omitZero = omitZero;
 	}
 
+	public String getDocument() {
+		return document;
+	}
+
+	public void setDocument(String document) {
+		this.document = document;
+	}
+
+	public int getHeartbeat() {
+		return heartbeat;
+	}
+
+	public void setHeartbeat(int heartbeat) {
+		this.heartbeat = heartbeat;
+	}
+
 }
@@ -11,6 +11,8 @@ public class FileConfig {
 	private String name = "metrics";
 	private String fileNamePattern = "yyyy-MM-dd";
 	private int maxHistory = 0;
+	private String document = "value";
+	private int heartbeat = 0;
 	
 	public boolean isEnabled() {
 		return enabled;
@@ -43,5 +45,21 @@ public class FileConfig {
 	public void setMaxHistory(int maxHistory) {
 		this.maxHistory = maxHistory;
 	}
+	
+	public String getDocument() {
+		return document;
+	}
+	
+	public void setDocument(String document) {
+		this.document = document;
+	}
+	
+	public int getHeartbeat() {
+		return heartbeat;
+	}
+	
+	public void setHeartbeat(int heartbeat) {
+		this.heartbeat = heartbeat;
+	}
 
 }
@@ -3,6 +3,8 @@ package cn.batchfile.metrics.collector.config;
 public class MemConfig {
 
 	private int events = 4096;
+	private int batches = 1024;
+	private String waitStrategy = "blocking";
 
 	public int getEvents() {
 		return events;
@@ -11,5 +13,21 @@ public class MemConfig {
 	public void setEvents(int events) {
 		this.events = events;
 	}
+
+	public int getBatches() {
+		return batches;
+	}
+
+	public void setBatches(int batches) {
+		this.batches = batches;
+	}
+
+	public String getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	public void setWaitStrategy(String waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
 	
 }
@@ -0,0 +1,85 @@
+package cn.batchfile.metrics.collector.config;
+
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties("push")
+public class PushConfig {
+
+	private boolean enabled = false;
+	private int maxBodySize = 4 * 1024 * 1024;
+	private int rate = 10000;
+	private int burst = 20000;
+	private List<String> tenants;
+	private int maxTenants = 1000;
+	private int globalRate = 50000;
+	private int globalBurst = 100000;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	public void setMaxBodySize(int maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	public int getRate() {
+		return rate;
+	}
+
+	public void setRate(int rate) {
+		this.rate = rate;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	public void setBurst(int burst) {
+		this.burst = burst;
+	}
+
+	public List<String> getTenants() {
+		return tenants;
+	}
+
+	public void setTenants(List<String> tenants) {
+		this.tenants = tenants;
+	}
+
+	public int getMaxTenants() {
+		return maxTenants;
+	}
+
+	public void setMaxTenants(int maxTenants) {
+		this.maxTenants = maxTenants;
+	}
+
+	public int getGlobalRate() {
+		return globalRate;
+	}
+
+	public void setGlobalRate(int globalRate) {
+		this.globalRate = globalRate;
+	}
+
+	public int getGlobalBurst() {
+		return globalBurst;
+	}
+
+	public void setGlobalBurst(int globalBurst) {
+		this.globalBurst = globalBurst;
+	}
+
+}
@@ -0,0 +1,50 @@
+package cn.batchfile.metrics.collector.config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties("rollup")
+public class RollupConfig {
+
+	private boolean enabled = false;
+	private List<Integer> windows = Arrays.asList(60, 300);
+	private int delay = 15;
+	private String index = "'metrics-collector-rollup-%s-'yyyy-MM-dd";
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public List<Integer> getWindows() {
+		return windows;
+	}
+
+	public void setWindows(List<Integer> windows) {
+		this.windows = windows;
+	}
+
+	public int getDelay() {
+		return delay;
+	}
+
+	public void setDelay(int delay) {
+		this.delay = delay;
+	}
+
+	public String getIndex() {
+		return index;
+	}
+
+	public void setIndex(String index) {
+		this.index = index;
+	}
+
+}
@@ -0,0 +1,58 @@
+package cn.batchfile.metrics.collector.config;
+
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties("shard")
+public class ShardConfig {
+
+	private boolean enabled = false;
+	private String self;
+	private List<String> peers;
+	private String app;
+	private int virtualNodes = 128;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public String getSelf() {
+		return self;
+	}
+
+	public void setSelf(String self) {
+		this.self = self;
+	}
+
+	public List<String> getPeers() {
+		return peers;
+	}
+
+	public void setPeers(List<String> peers) {
+		this.peers = peers;
+	}
+
+	public String getApp() {
+		return app;
+	}
+
+	public void setApp(String app) {
+		this.app = app;
+	}
+
+	public int getVirtualNodes() {
+		return virtualNodes;
+	}
+
+	public void setVirtualNodes(int virtualNodes) {
+		this.virtualNodes = virtualNodes;
+	}
+
+}
@@ -1,22 +1,36 @@
 package cn.batchfile.metrics.collector.controller;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 import cn.batchfile.metrics.collector.config.BeatConfig;
+import cn.batchfile.metrics.collector.domain.Target;
+import cn.batchfile.metrics.collector.functions.MetricFilter;
+import cn.batchfile.metrics.collector.service.BeatService;
+import cn.batchfile.metrics.collector.service.ShardService;
 
 @RestController
 public class BeatController {
 	
 	@Autowired
 	private BeatConfig beatConfig;
+	
+	@Autowired
+	private BeatService beatService;
+	
+	@Autowired
+	private ShardService shardService;
 
 	@GetMapping("/v1/beat/period")
 	public int getPeriod() {
@@ -28,6 +42,21 @@ public class BeatController {
 		return beatConfig.getHosts();
 	}
 	
+	@GetMapping("/v1/beat/targets")
+	public Collection<Target> getTargets() {
+		return beatService.getTargets();
+	}
+	
+	@GetMapping("/v1/beat/peers")
+	public List<String> getPeers() {
+		return shardService.getPeers();
+	}
+	
+	@GetMapping("/v1/beat/includes")
+	public List<String> getIncludes() {
+		return beatConfig.getIncludes();
+	}
+	
 	@GetMapping("/v1/beat/excludes")
 	public List<String> getExcludes() {
 		return beatConfig.getExcludes();
@@ -58,8 +87,36 @@ public class BeatController {
 		return beatConfig.getHosts();
 	}
 	
+	@PutMapping("/v1/beat/includes")
+	public List<String> putIncludes(@RequestBody String[] includes) {
+		validate(includes);
+		if (beatConfig.getIncludes() == null) {
+			beatConfig.setIncludes(new ArrayList<>());
+		}
+		
+		beatConfig.getIncludes().clear();
+		return patchIncludes(includes);
+	}
+
+	@PatchMapping("/v1/beat/includes")
+	public List<String> patchIncludes(@RequestBody String[] includes) {
+		validate(includes);
+		if (beatConfig.getIncludes() == null) {
+			beatConfig.setIncludes(new ArrayList<>());
+		}
+		
+		for (String include : includes) {
+			if (!beatConfig.getIncludes().contains(include)) {
+				beatConfig.getIncludes().add(include);
+			}
+		}
+		
+		return beatConfig.getIncludes();
+	}
+	
 	@PutMapping("/v1/beat/excludes")
 	public List<String> putExcludes(@RequestBody String[] excludes) {
+		validate(excludes);
 		if (beatConfig.getExcludes() == null) {
 			beatConfig.setExcludes(new ArrayList<>());
 		}
@@ -70,6 +127,7 @@ public class BeatController {
 
 	@PatchMapping("/v1/beat/excludes")
 	public List<String> patchExcludes(@RequestBody String[] excludes) {
+		validate(excludes);
 		if (beatConfig.getExcludes() == null) {
 			beatConfig.setExcludes(new ArrayList<>());
 		}
@@ -83,5 +141,13 @@ public class BeatController {
 		return beatConfig.getExcludes();
 	}
 	
+	// 规则有错误时不修改配置
+	private void validate(String[] rules) {
+		try {
+			MetricFilter.compile(Arrays.asList(rules), null);
+		} catch (RuntimeException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid rule: " + e.getMessage(), e);
+		}
+	}
 	
 }
@@ -0,0 +1,38 @@
+package cn.batchfile.metrics.collector.controller;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import cn.batchfile.metrics.collector.service.PushService;
+
+@RestController
+public class PushController {
+
+	@Autowired
+	private PushService pushService;
+
+	// 请求体支持 Prometheus 文本格式、OpenMetrics、protobuf 和 JSON
+	@PostMapping("/v1/push/{tenant}")
+	public int push(@PathVariable("tenant") String tenant,
+			@RequestParam(value = "host", required = false) String host,
+			@RequestParam(value = "port", defaultValue = "0") int port,
+			@RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType,
+			HttpServletRequest request) throws IOException, InterruptedException {
+		
+		if (StringUtils.isEmpty(host)) {
+			host = request.getRemoteAddr();
+		}
+		return pushService.push(tenant, host, port, contentType, request.getContentLengthLong(), request.getInputStream());
+	}
+
+}
@@ -0,0 +1,78 @@
+package cn.batchfile.metrics.collector.domain;
+
+public class Instance {
+
+	private String instanceId;
+	private String app;
+	private String status;
+	private String statusPageUrl;
+	private long lastUpdatedTimestamp;
+	private String metricsUrl;
+	private long probeTime;
+	private String actionType;
+
+	public String getInstanceId() {
+		return instanceId;
+	}
+
+	public void setInstanceId(String instanceId) {
+		this.instanceId = instanceId;
+	}
+
+	public String getApp() {
+		return app;
+	}
+
+	public void setApp(String app) {
+		this.app = app;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public String getStatusPageUrl() {
+		return statusPageUrl;
+	}
+
+	public void setStatusPageUrl(String statusPageUrl) {
+		this.statusPageUrl = statusPageUrl;
+	}
+
+	public long getLastUpdatedTimestamp() {
+		return lastUpdatedTimestamp;
+	}
+
+	public void setLastUpdatedTimestamp(long lastUpdatedTimestamp) {
+		this.lastUpdatedTimestamp = lastUpdatedTimestamp;
+	}
+
+	public String getMetricsUrl() {
+		return metricsUrl;
+	}
+
+	public void setMetricsUrl(String metricsUrl) {
+		this.metricsUrl = metricsUrl;
+	}
+
+	public long getProbeTime() {
+		return probeTime;
+	}
+
+	public void setProbeTime(long probeTime) {
+		this.probeTime = probeTime;
+	}
+
+	public String getActionType() {
+		return actionType;
+	}
+
+	public void setActionType(String actionType) {
+		this.actionType = actionType;
+	}
+
+}
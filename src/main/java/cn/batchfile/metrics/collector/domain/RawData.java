@@ -2,6 +2,8 @@ package cn.batchfile.metrics.collector.domain;
 
 import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 public class RawData {
 	
 	public enum Type {
@@ -19,6 +21,12 @@ public class RawData {
 	private String name;
 	private Map<String, String> tags;
 	private double[] values;
+	// histogram 的 bucket 上界，values 依次是 count、sum 和每个 bucket 的累计数量
+	private double[] bounds;
+	@JsonIgnore
+	private long seriesId;
+	@JsonIgnore
+	private long seriesCheck;
 
 	public String getHost() {
 		return host;
@@ -76,4 +84,28 @@ public class RawData {
 		this.values = values;
 	}
 
+	public double[] getBounds() {
+		return bounds;
+	}
+
+	public void setBounds(double[] bounds) {
+		this.bounds = bounds;
+	}
+
+	public long getSeriesId() {
+		return seriesId;
+	}
+
+	public void setSeriesId(long seriesId) {
+		this.seriesId = seriesId;
+	}
+
+	public long getSeriesCheck() {
+		return seriesCheck;
+	}
+
+	public void setSeriesCheck(long seriesCheck) {
+		this.seriesCheck = seriesCheck;
+	}
+
 }
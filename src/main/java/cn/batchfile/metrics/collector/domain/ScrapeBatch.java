@@ -0,0 +1,248 @@
+package cn.batchfile.metrics.collector.domain;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import cn.batchfile.metrics.collector.util.Json;
+
+/**
+ * 一次采集的所有指标数据，目标和时间只保存一份，名称、标签和数值按列保存。
+ * 每一行输出为一个 JSON 文档：{"metric":"","tags":{"host":"","port":""},"timestamp":"","value":0}
+ * 也可以把同一个序列的多行合并成一个文档，后缀作为字段名称：{"metric":"","tags":{},"timestamp":"","count":0,"sum":0,"value":0}
+ */
+public class ScrapeBatch {
+
+	public static ThreadLocal<SimpleDateFormat> FORMATTER = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		};
+	};
+
+	private final String host;
+	private final int port;
+	private final long time;
+	private String timestamp;
+	// 汇总数据的精度，例如 1m，原始数据为 null
+	private String resolution;
+	// 跨实例聚合的结果，不再参与聚合
+	private boolean aggregated;
+	private int size;
+	private String[] names;
+	private String[] suffixes;
+	private Map<String, String>[] tags;
+	private double[] values;
+	// 计数器的增量，例如 counter 和 summary 的 _count、_sum，其余为 gauge
+	private boolean[] deltas;
+
+	public ScrapeBatch(String host, int port, long time, int capacity) {
+		this.host = host;
+		this.port = port;
+		this.time = time;
+		allocate(Math.max(capacity, 16));
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public String getTimestamp() {
+		if (timestamp == null) {
+			timestamp = FORMATTER.get().format(new Date(time));
+		}
+		return timestamp;
+	}
+
+	public String getResolution() {
+		return resolution;
+	}
+
+	public void setResolution(String resolution) {
+		this.resolution = resolution;
+	}
+
+	public boolean isAggregated() {
+		return aggregated;
+	}
+
+	public void setAggregated(boolean aggregated) {
+		this.aggregated = aggregated;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// suffix 可以为 null，指标名称是 name + suffix
+	public void add(String name, String suffix, Map<String, String> tags, double value) {
+		add(name, suffix, tags, value, false);
+	}
+
+	// delta 为 true 时这一行是两次采集之间的增量，各个值相加是总数
+	public void add(String name, String suffix, Map<String, String> tags, double value, boolean delta) {
+		if (size == names.length) {
+			grow();
+		}
+		names[size] = name;
+		suffixes[size] = suffix;
+		this.tags[size] = tags;
+		values[size] = value;
+		deltas[size] = delta;
+		size ++;
+	}
+
+	public String getName(int i) {
+		return names[i];
+	}
+
+	public String getSuffix(int i) {
+		return suffixes[i];
+	}
+
+	public String getMetric(int i) {
+		return suffixes[i] == null ? names[i] : names[i] + suffixes[i];
+	}
+
+	public Map<String, String> getTags(int i) {
+		return tags[i];
+	}
+
+	public double getValue(int i) {
+		return values[i];
+	}
+
+	public boolean isDelta(int i) {
+		return deltas[i];
+	}
+
+	public void appendJson(StringBuilder s, int i) {
+		s.append("{\"metric\":\"");
+		quote(s, names[i]);
+		if (suffixes[i] != null) {
+			quote(s, suffixes[i]);
+		}
+		appendHead(s, i);
+		s.append(",\"value\":");
+		number(s, values[i]);
+		s.append('}');
+	}
+
+	// 同一个序列连续的几行 [i, end)，end 由 seriesEnd 得到
+	public void appendSeriesJson(StringBuilder s, int i, int end) {
+		s.append("{\"metric\":\"");
+		quote(s, names[i]);
+		appendHead(s, i);
+		for (int j = i; j < end; j ++) {
+			s.append(",\"");
+			if (suffixes[j] == null) {
+				s.append("value");
+			} else {
+				quote(s, suffixes[j].startsWith("_") ? suffixes[j].substring(1) : suffixes[j]);
+			}
+			s.append("\":");
+			number(s, values[j]);
+		}
+		s.append('}');
+	}
+
+	// composer 输出的同一个序列的各行是连续的，名称和标签相同、后缀不重复的行合并成一个文档
+	public int seriesEnd(int i) {
+		int end = i + 1;
+		while (end < size && names[end].equals(names[i]) && (tags[end] == tags[i] || (tags[end] != null && tags[end].equals(tags[i])))) {
+			for (int j = i; j < end; j ++) {
+				if (suffixes[j] == null ? suffixes[end] == null : suffixes[j].equals(suffixes[end])) {
+					return end;
+				}
+			}
+			end ++;
+		}
+		return end;
+	}
+
+	private void appendHead(StringBuilder s, int i) {
+		Map<String, String> t = tags[i];
+		s.append("\",\"tags\":{");
+		int mark = s.length();
+		String h = t != null && t.containsKey("host") ? t.get("host") : host;
+		if (h != null) {
+			s.append("\"host\":");
+			string(s, h);
+			s.append(",\"port\":");
+			string(s, t != null && t.containsKey("port") ? t.get("port") : String.valueOf(port));
+		}
+		if (t instanceof TagSet) {
+			s.append(((TagSet)t).getJson());
+		} else if (t != null) {
+			for (Entry<String, String> tag : t.entrySet()) {
+				if (!"host".equals(tag.getKey()) && !"port".equals(tag.getKey())) {
+					s.append(',');
+					string(s, tag.getKey());
+					s.append(':');
+					string(s, tag.getValue());
+				}
+			}
+		}
+		// 没有 host 的聚合数据，去掉第一个标签前的逗号
+		if (s.length() > mark && s.charAt(mark) == ',') {
+			s.deleteCharAt(mark);
+		}
+		s.append("},\"timestamp\":\"").append(getTimestamp()).append('"');
+	}
+
+	private static void number(StringBuilder s, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			s.append('"').append(value).append('"');
+		} else {
+			s.append(value);
+		}
+	}
+
+	public String toJson(int i) {
+		StringBuilder s = new StringBuilder(128);
+		appendJson(s, i);
+		return s.toString();
+	}
+
+	private static void string(StringBuilder s, String value) {
+		if (value == null) {
+			s.append("null");
+		} else {
+			s.append('"');
+			quote(s, value);
+			s.append('"');
+		}
+	}
+
+	private static void quote(StringBuilder s, String value) {
+		Json.quote(s, value);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void allocate(int capacity) {
+		names = new String[capacity];
+		suffixes = new String[capacity];
+		tags = new Map[capacity];
+		values = new double[capacity];
+		deltas = new boolean[capacity];
+	}
+
+	private void grow() {
+		int capacity = names.length << 1;
+		names = Arrays.copyOf(names, capacity);
+		suffixes = Arrays.copyOf(suffixes, capacity);
+		tags = Arrays.copyOf(tags, capacity);
+		values = Arrays.copyOf(values, capacity);
+		deltas = Arrays.copyOf(deltas, capacity);
+	}
+
+}
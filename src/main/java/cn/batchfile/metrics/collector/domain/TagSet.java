@@ -0,0 +1,256 @@
+package cn.batchfile.metrics.collector.domain;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+
+import cn.batchfile.metrics.collector.util.Hashing;
+import cn.batchfile.metrics.collector.util.Json;
+import cn.batchfile.metrics.collector.util.SeriesId;
+
+/**
+ * 不可变的标签集合，按名称排序，同样的标签在各个样本和各次采集之间共享同一个实例。
+ * 缓存了哈希值、序列 id 用到的标签哈希，以及输出时使用的 JSON 片段。
+ */
+public final class TagSet extends AbstractMap<String, String> {
+
+	public static final TagSet EMPTY = new TagSet(new String[0], new String[0]);
+	private static final int TABLE_SIZE = 1 << 16;
+	// 直接映射的全局缓存，冲突时覆盖旧值，实例不可变，并发读写不需要加锁
+	private static final TagSet[] TABLE = new TagSet[TABLE_SIZE];
+
+	private final String[] keys;
+	private final String[] values;
+	private final int hash;
+	private final long labelHash;
+	private final long labelCheck;
+	private String json;
+
+	private TagSet(String[] keys, String[] values) {
+		this.keys = keys;
+		this.values = values;
+		int h = 0;
+		for (int i = 0; i < keys.length; i ++) {
+			h += keys[i].hashCode() ^ (values[i] == null ? 0 : values[i].hashCode());
+		}
+		this.hash = h;
+		this.labelHash = SeriesId.labels(Hashing.seed(), this);
+		this.labelCheck = SeriesId.labels(SeriesId.CHECK_SEED, this);
+	}
+
+	public static TagSet of(Map<String, String> tags) {
+		if (tags == null || tags instanceof TagSet) {
+			return (TagSet)tags;
+		}
+		Builder builder = new Builder();
+		for (Entry<String, String> tag : tags.entrySet()) {
+			builder.add(tag.getKey(), tag.getValue());
+		}
+		return builder.build();
+	}
+
+	public long getLabelHash(long seed) {
+		if (seed == Hashing.seed()) {
+			return labelHash;
+		} else if (seed == SeriesId.CHECK_SEED) {
+			return labelCheck;
+		} else {
+			return SeriesId.labels(seed, this);
+		}
+	}
+
+	// 除 host 和 port 以外的标签，格式为 ,"k":"v",...
+	public String getJson() {
+		String s = json;
+		if (s == null) {
+			StringBuilder b = new StringBuilder();
+			for (int i = 0; i < keys.length; i ++) {
+				if (!"host".equals(keys[i]) && !"port".equals(keys[i])) {
+					b.append(",\"");
+					Json.quote(b, keys[i]);
+					b.append("\":");
+					if (values[i] == null) {
+						b.append("null");
+					} else {
+						b.append('"');
+						Json.quote(b, values[i]);
+						b.append('"');
+					}
+				}
+			}
+			s = json = b.toString();
+		}
+		return s;
+	}
+
+	@Override
+	public int size() {
+		return keys.length;
+	}
+
+	@Override
+	public String get(Object key) {
+		int i = indexOf(key);
+		return i < 0 ? null : values[i];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new Iterator<Entry<String, String>>() {
+					private int i;
+
+					@Override
+					public boolean hasNext() {
+						return i < keys.length;
+					}
+
+					@Override
+					public Entry<String, String> next() {
+						if (i >= keys.length) {
+							throw new NoSuchElementException();
+						}
+						Entry<String, String> entry = new SimpleImmutableEntry<>(keys[i], values[i]);
+						i ++;
+						return entry;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return keys.length;
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (o instanceof TagSet) {
+			TagSet other = (TagSet)o;
+			return hash == other.hash && Arrays.equals(keys, other.keys) && Arrays.equals(values, other.values);
+		} else {
+			return super.equals(o);
+		}
+	}
+
+	private int indexOf(Object key) {
+		if (!(key instanceof String)) {
+			return -1;
+		}
+		// 标签数量很少，顺序查找比二分查找快
+		for (int i = 0; i < keys.length; i ++) {
+			if (keys[i].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 构造 TagSet，可以重复使用，不是线程安全的。
+	 */
+	public static class Builder {
+		private String[] keys = new String[8];
+		private String[] values = new String[8];
+		private int size;
+
+		// 重复的名称保留最后一个值
+		public Builder add(String key, String value) {
+			for (int i = 0; i < size; i ++) {
+				if (keys[i].equals(key)) {
+					values[i] = value;
+					return this;
+				}
+			}
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size << 1);
+				values = Arrays.copyOf(values, size << 1);
+			}
+			keys[size] = key;
+			values[size] = value;
+			size ++;
+			return this;
+		}
+
+		public Builder addAll(Map<String, String> tags) {
+			if (tags != null) {
+				for (Entry<String, String> tag : tags.entrySet()) {
+					add(tag.getKey(), tag.getValue());
+				}
+			}
+			return this;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+		public TagSet build() {
+			if (size == 0) {
+				return EMPTY;
+			}
+
+			// 插入排序，标签数量很少
+			for (int i = 1; i < size; i ++) {
+				String k = keys[i];
+				String v = values[i];
+				int j = i - 1;
+				while (j >= 0 && keys[j].compareTo(k) > 0) {
+					keys[j + 1] = keys[j];
+					values[j + 1] = values[j];
+					j --;
+				}
+				keys[j + 1] = k;
+				values[j + 1] = v;
+			}
+
+			int h = 0;
+			for (int i = 0; i < size; i ++) {
+				h = 31 * h + keys[i].hashCode();
+				h = 31 * h + (values[i] == null ? 0 : values[i].hashCode());
+			}
+			int index = (h ^ (h >>> 16)) & (TABLE_SIZE - 1);
+			TagSet cached = TABLE[index];
+			if (cached == null || !matches(cached)) {
+				cached = new TagSet(Arrays.copyOf(keys, size), Arrays.copyOf(values, size));
+				TABLE[index] = cached;
+			}
+			size = 0;
+			return cached;
+		}
+
+		private boolean matches(TagSet tags) {
+			if (tags.keys.length != size) {
+				return false;
+			}
+			for (int i = 0; i < size; i ++) {
+				if (!tags.keys[i].equals(keys[i]) || !Objects.equals(tags.values[i], values[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+}
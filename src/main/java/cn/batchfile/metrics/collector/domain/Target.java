@@ -0,0 +1,132 @@
+package cn.batchfile.metrics.collector.domain;
+
+import java.net.URI;
+
+public class Target {
+	
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN,
+	}
+
+	private String url;
+	private URI uri;
+	private long period;
+	private long offset;
+	private long round;
+	// 断路器状态在 Target 上同步修改，指标和接口不加锁读取
+	private volatile State state = State.CLOSED;
+	private volatile int failures;
+	private volatile long backoff;
+	private volatile long retryTime;
+	private volatile long lastSuccess;
+	private volatile String lastError;
+	private volatile int series;
+	private volatile String limited;
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public URI getUri() {
+		return uri;
+	}
+
+	public void setUri(URI uri) {
+		this.uri = uri;
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	public void setPeriod(long period) {
+		this.period = period;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public long getRound() {
+		return round;
+	}
+
+	public void setRound(long round) {
+		this.round = round;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public void setState(State state) {
+		this.state = state;
+	}
+
+	public int getFailures() {
+		return failures;
+	}
+
+	public void setFailures(int failures) {
+		this.failures = failures;
+	}
+
+	public long getBackoff() {
+		return backoff;
+	}
+
+	public void setBackoff(long backoff) {
+		this.backoff = backoff;
+	}
+
+	public long getRetryTime() {
+		return retryTime;
+	}
+
+	public void setRetryTime(long retryTime) {
+		this.retryTime = retryTime;
+	}
+
+	public long getLastSuccess() {
+		return lastSuccess;
+	}
+
+	public void setLastSuccess(long lastSuccess) {
+		this.lastSuccess = lastSuccess;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+
+	public int getSeries() {
+		return series;
+	}
+
+	public void setSeries(int series) {
+		this.series = series;
+	}
+
+	public String getLimited() {
+		return limited;
+	}
+
+	public void setLimited(String limited) {
+		this.limited = limited;
+	}
+
+}
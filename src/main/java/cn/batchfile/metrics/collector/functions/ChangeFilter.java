@@ -0,0 +1,145 @@
+package cn.batchfile.metrics.collector.functions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import cn.batchfile.metrics.collector.util.Hashing;
+import cn.batchfile.metrics.collector.util.LongMap;
+import cn.batchfile.metrics.collector.util.SeriesId;
+
+/**
+ * 记住每个序列最后输出的值，值没有变化时不再输出，连续 heartbeat 个周期没有输出时强制输出一次。
+ * 计数器的增量不按是否变化判断，跳过一个增量会少算总数，只有连续为 0 的增量才不输出。
+ * 每个输出各自使用一个实例。输出的值在写入成功以后 commit，失败时 reset，这些序列下次一定输出。
+ */
+public class ChangeFilter {
+
+	private static final long EXPIRE_INTERVAL = 300000;
+	private final int heartbeat;
+	private final LongMap<State> states = new LongMap<>(4096);
+	private long expired = System.currentTimeMillis();
+	private State[] group = new State[8];
+	// 已经决定输出、还没有确认写入结果的序列
+	private final List<State> pending = new ArrayList<>();
+
+	public ChangeFilter(int heartbeat) {
+		this.heartbeat = heartbeat;
+	}
+
+	public boolean isEnabled() {
+		return heartbeat > 0;
+	}
+
+	// 判断 [i, end) 这几行是否需要输出，series 文档中任意一个值变化就输出整个文档
+	public synchronized boolean test(ScrapeBatch batch, int i, int end) {
+		if (heartbeat <= 0) {
+			return true;
+		}
+
+		long now = System.currentTimeMillis();
+		if (now - expired >= EXPIRE_INTERVAL) {
+			expire(expired);
+			expired = now;
+		}
+
+		if (end - i > group.length) {
+			group = new State[end - i];
+		}
+		boolean emit = false;
+		for (int j = i; j < end; j ++) {
+			State state = state(batch, j);
+			group[j - i] = state;
+			state.seen = now;
+			double value = batch.getValue(j);
+			if (state.skipped < 0 || state.skipped + 1 >= heartbeat
+					|| (batch.isDelta(j) && value != 0)
+					|| Double.doubleToLongBits(state.value) != Double.doubleToLongBits(value)) {
+				emit = true;
+			}
+		}
+
+		for (int j = i; j < end; j ++) {
+			State state = group[j - i];
+			if (emit) {
+				state.value = batch.getValue(j);
+				state.skipped = 0;
+				pending.add(state);
+			} else {
+				state.skipped ++;
+			}
+		}
+		return emit;
+	}
+
+	public synchronized void commit() {
+		pending.clear();
+	}
+
+	public synchronized void reset() {
+		for (State state : pending) {
+			state.skipped = -1;
+		}
+		pending.clear();
+	}
+
+	public synchronized int size() {
+		return states.size();
+	}
+
+	private State state(ScrapeBatch batch, int i) {
+		long id = SeriesId.hash(Hashing.seed(), batch.getHost(), batch.getPort(), batch.getName(i), batch.getTags(i));
+		long check = SeriesId.hash(SeriesId.CHECK_SEED, batch.getHost(), batch.getPort(), batch.getName(i), batch.getTags(i));
+		if (batch.getSuffix(i) != null || batch.getResolution() != null) {
+			id = mix(id, batch.getSuffix(i), batch.getResolution());
+			check = mix(check, batch.getSuffix(i), batch.getResolution());
+		}
+
+		State state;
+		while ((state = states.get(id)) != null && state.check != check) {
+			id = SeriesId.next(id);
+		}
+		if (state == null) {
+			state = new State(check);
+			states.put(id, state);
+		}
+		return state;
+	}
+
+	// 超过一个间隔没有出现的序列
+	private void expire(long before) {
+		List<Long> removes = new ArrayList<>();
+		states.forEach((id, state) -> {
+			if (state.seen < before) {
+				removes.add(id);
+			}
+		});
+		for (long id : removes) {
+			states.remove(id);
+		}
+	}
+
+	private static long mix(long h, String suffix, String resolution) {
+		if (suffix != null) {
+			h = Hashing.update(h, suffix);
+		}
+		if (resolution != null) {
+			h = Hashing.update(Hashing.update(h, "@"), resolution);
+		}
+		h = Hashing.mix(h);
+		return h == 0 ? 1 : h;
+	}
+
+	private static class State {
+		private final long check;
+		private double value;
+		// 连续没有输出的次数，新的序列为 -1
+		private int skipped = -1;
+		private long seen;
+
+		State(long check) {
+			this.check = check;
+		}
+	}
+
+}
@@ -1,15 +1,12 @@
 package cn.batchfile.metrics.collector.functions;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.function.Function;
+import java.util.function.BiConsumer;
 
-import cn.batchfile.metrics.collector.domain.MetricData;
 import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
 import cn.batchfile.metrics.collector.service.CacheService;
 
-public class CounterMetricsComposer implements Function<RawData, List<MetricData>> {
+public class CounterMetricsComposer implements BiConsumer<RawData, ScrapeBatch> {
 	
 	private CacheService cacheService;
 	
@@ -18,26 +15,13 @@ public class CounterMetricsComposer implements Function<RawData, List<MetricData
 	}
 
 	@Override
-	public List<MetricData> apply(RawData data) {
-		MetricData metric = new MetricData();
-		metric.setMetric(data.getName());
-		metric.setTimestamp(DefaultMetricsComposer.FORMATTER.get().format(new Date(data.getTime())));
-		metric.setValue(data.getValues()[0]);
-		metric.getTags().put("host", data.getHost());
-		metric.getTags().put("port", String.valueOf(data.getPort()));
-		if (data.getTags() != null) {
-			metric.getTags().putAll(data.getTags());
+	public void accept(RawData data, ScrapeBatch batch) {
+		double value = data.getValues()[0];
+		double[] previous = new double[1];
+		if (cacheService.getAndPut(data, previous) && data.getValues()[0] >= previous[0]) {
+			value = data.getValues()[0] - previous[0];
 		}
-		
-		RawData oldData = cacheService.get(data);
-		if (oldData != null && data.getValues()[0] >= oldData.getValues()[0]) {
-			metric.setValue(data.getValues()[0] - oldData.getValues()[0]);
-		}
-		cacheService.put(data);
-		
-		List<MetricData> metrics = new ArrayList<>();
-		metrics.add(metric);
-		return metrics;
+		batch.add(data.getName(), null, data.getTags(), value, true);
 	}
 
 }
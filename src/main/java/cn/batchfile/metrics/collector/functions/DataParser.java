@@ -0,0 +1,17 @@
+package cn.batchfile.metrics.collector.functions;
+
+import java.util.function.Consumer;
+
+import cn.batchfile.metrics.collector.domain.RawData;
+
+@FunctionalInterface
+public interface DataParser {
+
+	void parse(byte[] content, MetricFilter filter, Consumer<RawData> sink);
+
+	// 内容不完整或者格式错误时抛出异常，不能只接受已经解析的部分数据，默认与 parse 相同
+	default void parseStrictly(byte[] content, MetricFilter filter, Consumer<RawData> sink) {
+		parse(content, filter, sink);
+	}
+
+}
@@ -0,0 +1,93 @@
+package cn.batchfile.metrics.collector.functions;
+
+import java.util.function.BiConsumer;
+
+import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import cn.batchfile.metrics.collector.service.CacheService;
+import cn.batchfile.metrics.collector.util.SeriesId;
+
+public class HistogramMetricsComposer implements BiConsumer<RawData, ScrapeBatch> {
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+	private static final String[] SUFFIXES = {"_p50", "_p90", "_p99"};
+	private final DefaultMetricsComposer defaultComposer = new DefaultMetricsComposer();
+	private CacheService cacheService;
+
+	public HistogramMetricsComposer(CacheService cacheService) {
+		this.cacheService = cacheService;
+	}
+
+	@Override
+	public void accept(RawData data, ScrapeBatch batch) {
+		double[] values = data.getValues();
+		double[] bounds = data.getBounds();
+		// Yammer 的 histogram 没有 bucket，每个字段（count、mean、p99 等）是一个单独的值
+		if (bounds == null || bounds.length == 0) {
+			defaultComposer.accept(data, batch);
+			return;
+		}
+		if (values.length != bounds.length + 2) {
+			return;
+		}
+
+		// 每个槽保存两个值，count 和 sum 使用序列 id，bucket 每两个一组使用派生的 id
+		long id = SeriesId.of(data);
+		long check = SeriesId.check(data);
+		double[] previous = new double[values.length + 1];
+		double[] pair = new double[2];
+		boolean found = true;
+		for (int i = 0; i < values.length; i += 2) {
+			double[] current = {values[i], i + 1 < values.length ? values[i + 1] : 0};
+			int k = i / 2;
+			long pairId = k == 0 ? id : SeriesId.derive(id, k);
+			long pairCheck = k == 0 ? check : SeriesId.derive(check, k);
+			found &= cacheService.getAndPut(pairId, pairCheck, data.getTime(), current, pair);
+			previous[i] = pair[0];
+			previous[i + 1] = pair[1];
+		}
+
+		// 计数器重置或者没有上一次的数据时，使用累计值
+		double[] delta = values.clone();
+		if (found && values[0] >= previous[0]) {
+			boolean reset = false;
+			for (int i = 0; i < values.length; i ++) {
+				delta[i] = values[i] - previous[i];
+				reset |= i != 1 && delta[i] < 0;
+			}
+			if (reset) {
+				delta = values.clone();
+			}
+		}
+
+		batch.add(data.getName(), "_count", data.getTags(), delta[0], true);
+		batch.add(data.getName(), "_sum", data.getTags(), delta[1], true);
+		if (delta[values.length - 1] > 0) {
+			for (int i = 0; i < QUANTILES.length; i ++) {
+				batch.add(data.getName(), SUFFIXES[i], data.getTags(), quantile(QUANTILES[i], bounds, delta));
+			}
+		}
+	}
+
+	// 与 Prometheus histogram_quantile 相同，在 bucket 内线性插值
+	static double quantile(double q, double[] bounds, double[] values) {
+		int n = bounds.length;
+		double rank = q * values[n + 1];
+		int i = 0;
+		while (i < n - 1 && values[i + 2] < rank) {
+			i ++;
+		}
+
+		if (bounds[i] == Double.POSITIVE_INFINITY) {
+			return i == 0 ? 0 : bounds[i - 1];
+		}
+		double lower = i == 0 ? Math.min(0, bounds[0]) : bounds[i - 1];
+		double lowerCount = i == 0 ? 0 : values[i + 1];
+		double count = values[i + 2] - lowerCount;
+		if (count <= 0) {
+			return bounds[i];
+		}
+		return lower + (bounds[i] - lower) * (rank - lowerCount) / count;
+	}
+
+}
@@ -0,0 +1,331 @@
+package cn.batchfile.metrics.collector.functions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * 编译后的指标过滤规则，规则格式：
+ * <ul>
+ * <li>{@code jvm.memory.used} 精确匹配</li>
+ * <li>{@code jvm_gc_*} 前缀匹配</li>
+ * <li>{@code http_*_seconds} 或 {@code jvm_?c} 通配符</li>
+ * <li>{@code /tomcat_(sessions|threads)_.+/} 正则表达式，匹配完整名称</li>
+ * <li>{@code http_server_requests_seconds{uri=~"/api/.+",status!="200"}} 标签匹配，名称部分可以为空</li>
+ * </ul>
+ */
+public class MetricFilter implements Predicate<String> {
+
+	public static final MetricFilter ALL = compile(null, null);
+	private static final int MAX_DECISIONS = 65536;
+
+	private final NameMatcher includes;
+	private final NameMatcher excludes;
+	private final List<LabelRule> includeRules;
+	private final List<LabelRule> excludeRules;
+	private final Map<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+	private MetricFilter(NameMatcher includes, NameMatcher excludes, List<LabelRule> includeRules, List<LabelRule> excludeRules) {
+		this.includes = includes;
+		this.excludes = excludes;
+		this.includeRules = includeRules;
+		this.excludeRules = excludeRules;
+	}
+
+	public static MetricFilter compile(List<String> includes, List<String> excludes) {
+		NameMatcher includeNames = new NameMatcher();
+		NameMatcher excludeNames = new NameMatcher();
+		List<LabelRule> includeRules = new ArrayList<>();
+		List<LabelRule> excludeRules = new ArrayList<>();
+
+		if (includes != null) {
+			for (String include : includes) {
+				add(include, includeNames, includeRules);
+			}
+		}
+		if (excludes != null) {
+			for (String exclude : excludes) {
+				add(exclude, excludeNames, excludeRules);
+			}
+		}
+
+		includeNames.build();
+		excludeNames.build();
+		boolean hasIncludes = !includeNames.isEmpty() || !includeRules.isEmpty();
+		return new MetricFilter(hasIncludes ? includeNames : null, excludeNames, includeRules, excludeRules);
+	}
+
+	// 只根据名称判断，在解析标签和数值之前调用
+	@Override
+	public boolean test(String name) {
+		Boolean decision = decisions.get(name);
+		if (decision == null) {
+			decision = decide(name);
+			if (decisions.size() >= MAX_DECISIONS) {
+				decisions.clear();
+			}
+			decisions.put(name, decision);
+		}
+		return decision;
+	}
+
+	public boolean hasLabelRules() {
+		return !includeRules.isEmpty() || !excludeRules.isEmpty();
+	}
+
+	// 名称已经通过 test 以后，根据标签判断
+	public boolean test(String name, Map<String, String> tags) {
+		for (LabelRule rule : excludeRules) {
+			if (rule.matches(name, tags)) {
+				return false;
+			}
+		}
+
+		if (includes == null || includes.matches(name)) {
+			return true;
+		}
+		for (LabelRule rule : includeRules) {
+			if (rule.matches(name, tags)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean decide(String name) {
+		if (excludes.matches(name)) {
+			return false;
+		}
+		if (includes == null || includes.matches(name)) {
+			return true;
+		}
+		for (LabelRule rule : includeRules) {
+			if (rule.matchesName(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void add(String rule, NameMatcher names, List<LabelRule> rules) {
+		if (StringUtils.isBlank(rule)) {
+			return;
+		}
+
+		rule = rule.trim();
+		int brace = rule.indexOf('{');
+		if (brace >= 0 && rule.endsWith("}") && !(rule.startsWith("/") && rule.endsWith("/"))) {
+			String name = rule.substring(0, brace).trim();
+			NameMatcher matcher = null;
+			if (name.length() > 0) {
+				matcher = new NameMatcher();
+				matcher.add(name);
+				matcher.build();
+			}
+			rules.add(new LabelRule(matcher, parseLabels(rule.substring(brace + 1, rule.length() - 1))));
+		} else {
+			names.add(rule);
+		}
+	}
+
+	private static List<LabelMatcher> parseLabels(String s) {
+		List<LabelMatcher> matchers = new ArrayList<>();
+		int i = 0;
+		while (i < s.length()) {
+			while (i < s.length() && (s.charAt(i) == ',' || Character.isWhitespace(s.charAt(i)))) {
+				i ++;
+			}
+			if (i >= s.length()) {
+				break;
+			}
+
+			int start = i;
+			while (i < s.length() && s.charAt(i) != '=' && s.charAt(i) != '!') {
+				i ++;
+			}
+			String key = s.substring(start, i).trim();
+
+			boolean negative = i < s.length() && s.charAt(i) == '!';
+			if (negative) {
+				i ++;
+			}
+			if (i >= s.length() || s.charAt(i) != '=') {
+				throw new IllegalArgumentException("invalid label matcher: " + s);
+			}
+			i ++;
+			boolean regex = i < s.length() && s.charAt(i) == '~';
+			if (regex) {
+				i ++;
+			}
+			if (i >= s.length() || s.charAt(i) != '"') {
+				throw new IllegalArgumentException("invalid label matcher: " + s);
+			}
+
+			StringBuilder value = new StringBuilder();
+			i ++;
+			while (i < s.length() && s.charAt(i) != '"') {
+				if (s.charAt(i) == '\\' && i + 1 < s.length()) {
+					i ++;
+				}
+				value.append(s.charAt(i ++));
+			}
+			i ++;
+
+			matchers.add(new LabelMatcher(key, value.toString(), regex, negative));
+		}
+		return matchers;
+	}
+
+	private static class NameMatcher {
+		private final Set<String> names = new HashSet<>();
+		private final PrefixNode prefixes = new PrefixNode();
+		private final List<String> regexes = new ArrayList<>();
+		private boolean hasPrefixes;
+		private Pattern pattern;
+
+		void add(String rule) {
+			if (rule.length() > 2 && rule.startsWith("/") && rule.endsWith("/")) {
+				regexes.add(rule.substring(1, rule.length() - 1));
+			} else if (rule.indexOf('*') == rule.length() - 1 && rule.indexOf('?') < 0) {
+				prefixes.add(rule.substring(0, rule.length() - 1));
+				hasPrefixes = true;
+			} else if (rule.indexOf('*') >= 0 || rule.indexOf('?') >= 0) {
+				regexes.add(globToRegex(rule));
+			} else {
+				names.add(rule);
+			}
+		}
+
+		void build() {
+			// 所有正则和通配符合并成一个表达式，每个名称只匹配一次
+			if (!regexes.isEmpty()) {
+				StringBuilder s = new StringBuilder();
+				for (String regex : regexes) {
+					if (s.length() > 0) {
+						s.append('|');
+					}
+					s.append("(?:").append(regex).append(')');
+				}
+				pattern = Pattern.compile(s.toString());
+			}
+		}
+
+		boolean isEmpty() {
+			return names.isEmpty() && !hasPrefixes && pattern == null;
+		}
+
+		boolean matches(String name) {
+			return names.contains(name)
+					|| (hasPrefixes && prefixes.matches(name))
+					|| (pattern != null && pattern.matcher(name).matches());
+		}
+
+		private static String globToRegex(String glob) {
+			StringBuilder s = new StringBuilder();
+			StringBuilder literal = new StringBuilder();
+			for (char c : glob.toCharArray()) {
+				if (c == '*' || c == '?') {
+					if (literal.length() > 0) {
+						s.append(Pattern.quote(literal.toString()));
+						literal.setLength(0);
+					}
+					s.append(c == '*' ? ".*" : ".");
+				} else {
+					literal.append(c);
+				}
+			}
+			if (literal.length() > 0) {
+				s.append(Pattern.quote(literal.toString()));
+			}
+			return s.toString();
+		}
+	}
+
+	private static class PrefixNode {
+		private Map<Character, PrefixNode> children;
+		private boolean terminal;
+
+		void add(String prefix) {
+			PrefixNode node = this;
+			for (int i = 0; i < prefix.length(); i ++) {
+				if (node.children == null) {
+					node.children = new HashMap<>();
+				}
+				node = node.children.computeIfAbsent(prefix.charAt(i), c -> new PrefixNode());
+			}
+			node.terminal = true;
+		}
+
+		boolean matches(String name) {
+			PrefixNode node = this;
+			for (int i = 0; i < name.length(); i ++) {
+				if (node.terminal) {
+					return true;
+				}
+				node = node.children == null ? null : node.children.get(name.charAt(i));
+				if (node == null) {
+					return false;
+				}
+			}
+			return node.terminal;
+		}
+	}
+
+	private static class LabelRule {
+		private final NameMatcher name;
+		private final List<LabelMatcher> labels;
+
+		LabelRule(NameMatcher name, List<LabelMatcher> labels) {
+			this.name = name;
+			this.labels = labels;
+		}
+
+		boolean matchesName(String name) {
+			return this.name == null || this.name.matches(name);
+		}
+
+		boolean matches(String name, Map<String, String> tags) {
+			if (!matchesName(name)) {
+				return false;
+			}
+			for (LabelMatcher label : labels) {
+				if (!label.matches(tags)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static class LabelMatcher {
+		private final String key;
+		private final String value;
+		private final Pattern pattern;
+		private final boolean negative;
+
+		LabelMatcher(String key, String value, boolean regex, boolean negative) {
+			this.key = key;
+			this.value = value;
+			this.pattern = regex ? Pattern.compile(value) : null;
+			this.negative = negative;
+		}
+
+		boolean matches(Map<String, String> tags) {
+			String v = tags == null ? null : tags.get(key);
+			if (v == null) {
+				v = StringUtils.EMPTY;
+			}
+			boolean matched = pattern == null ? value.equals(v) : pattern.matcher(v).matches();
+			return matched != negative;
+		}
+	}
+
+}
@@ -1,90 +1,521 @@
 package cn.batchfile.metrics.collector.functions;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.function.Function;
-
-import org.apache.commons.lang3.StringUtils;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 import cn.batchfile.metrics.collector.domain.RawData;
 import cn.batchfile.metrics.collector.domain.RawData.Type;
+import cn.batchfile.metrics.collector.domain.TagSet;
+import cn.batchfile.metrics.collector.util.StringCache;
+
+// 解析 Prometheus 文本格式 (text/plain; version=0.0.4) 和 OpenMetrics 文本格式
+public class PrometheusDataParser implements DataParser {
+
+	private static final double[] POWERS = new double[23];
+	private static ThreadLocal<StringCache> CACHE = new ThreadLocal<StringCache>() {
+		protected StringCache initialValue() {
+			return new StringCache(4096);
+		};
+	};
 
-public class PrometheusDataParser implements Function<StringBuilder, List<RawData>> {
+	static {
+		POWERS[0] = 1;
+		for (int i = 1; i < POWERS.length; i ++) {
+			POWERS[i] = POWERS[i - 1] * 10;
+		}
+	}
 
 	@Override
-	public List<RawData> apply(StringBuilder content) {
-		List<RawData> list = new ArrayList<>();
-		final String[] lines = StringUtils.split(StringUtils.remove(content.toString(), '\r'), '\n');
-		
-		// group by name
-		List<List<String>> groups = new ArrayList<>();
-		List<String> g = null;
-		for (String line : lines) {
-			if (StringUtils.startsWith(line, "# HELP ")) {
-				if (g != null) {
-					groups.add(g);
-				}
-				g = new ArrayList<>();
+	public void parse(byte[] content, MetricFilter filter, Consumer<RawData> sink) {
+		new Reader(content, CACHE.get(), filter, sink).read();
+	}
+
+	private static class Reader {
+		private final byte[] b;
+		private final StringCache cache;
+		private final MetricFilter filter;
+		private final Consumer<RawData> sink;
+		private final TagSet.Builder builder = new TagSet.Builder();
+
+		// 当前指标族，名称在 b 中的位置
+		private String family;
+		private int familyOffset;
+		private int familyLength;
+		private Type type = Type.UNTYPED;
+		private boolean accepted = true;
+
+		// summary 的 _count 和 _sum 在两行中，配对以后再输出
+		private RawData pending;
+		private boolean pendingCount;
+		private boolean pendingSum;
+
+		// histogram 的各个 bucket 以及 _count、_sum 在多行中，同一组标签合并成一条数据
+		private TagSet histogram;
+		private double[] bounds = new double[16];
+		private double[] buckets = new double[16];
+		private int bucketCount;
+		private double histogramCount;
+		private double histogramSum;
+		private boolean histogramLe;
+		private String le;
+
+		private boolean valid;
+
+		Reader(byte[] b, StringCache cache, MetricFilter filter, Consumer<RawData> sink) {
+			this.b = b;
+			this.cache = cache;
+			this.filter = filter;
+			this.sink = sink;
+		}
+
+		void read() {
+			int pos = 0;
+			while (pos < b.length) {
+				int lineEnd = pos;
+				while (lineEnd < b.length && b[lineEnd] != '\n') {
+					lineEnd ++;
+				}
+
+				int s = skipSpaces(pos, lineEnd);
+				int e = lineEnd;
+				while (e > s && isSpace(b[e - 1])) {
+					e --;
+				}
+
+				if (s < e) {
+					if (b[s] == '#') {
+						comment(s + 1, e);
+					} else {
+						sample(s, e);
+					}
+				}
+				pos = lineEnd + 1;
+			}
+			pending = null;
+			flushHistogram();
+		}
+
+		private void comment(int p, int e) {
+			p = skipSpaces(p, e);
+			if (!startsWith(p, e, "TYPE ")) {
+				return;
+			}
+
+			p = skipSpaces(p + 5, e);
+			int ns = p;
+			while (p < e && !isSpace(b[p])) {
+				p ++;
+			}
+			int ts = skipSpaces(p, e);
+
+			pending = null;
+			flushHistogram();
+			family = cache.get(b, ns, p - ns);
+			familyOffset = ns;
+			familyLength = p - ns;
+			type = parseType(ts, e);
+			accepted = filter.test(family);
+		}
+
+		private void sample(int p, int e) {
+			int ns = p;
+			while (p < e && b[p] != '{' && !isSpace(b[p])) {
+				p ++;
+			}
+			int nl = p - ns;
+
+			boolean inFamily = inFamily(ns, nl);
+			String name = family;
+			boolean accept = accepted;
+			if (!inFamily) {
+				name = cache.get(b, ns, nl);
+				accept = filter.test(name);
+			} else if (type == Type.COUNTER && nl > familyLength) {
+				// OpenMetrics 的 counter 样本带 _total 后缀，_created 不处理
+				if (equals(ns + familyLength, ns + nl, "_created")) {
+					return;
+				}
+				name = cache.get(b, ns, nl);
+				accept = filter.test(name);
+			}
+			
+			// 名称被过滤的样本不再解析标签和数值
+			if (!accept) {
+				return;
+			}
+
+			// histogram 的 le 标签单独保存，不放到标签中
+			histogramLe = inFamily && type == Type.HISTOGRAM;
+			le = null;
+			if (p < e && b[p] == '{') {
+				p = labels(p + 1, e);
+				if (p < 0) {
+					builder.clear();
+					return;
+				}
+			}
+			TagSet tags = builder.build();
+			if (filter.hasLabelRules() && !filter.test(name, tags)) {
+				return;
+			}
+
+			p = skipSpaces(p, e);
+			int vs = p;
+			while (p < e && !isSpace(b[p])) {
+				p ++;
+			}
+			double value = parseDouble(vs, p);
+			if (!valid) {
+				return;
+			}
+
+			if (inFamily && type == Type.SUMMARY) {
+				summary(ns + familyLength, nl - familyLength, tags, value);
+				return;
+			} else if (inFamily && type == Type.HISTOGRAM) {
+				histogram(ns + familyLength, nl - familyLength, tags, value);
+				return;
+			}
+
+			RawData data = new RawData();
+			data.setName(name);
+			data.setType(inFamily ? type : Type.UNTYPED);
+			data.setTags(tags);
+			data.setValues(new double[] {value});
+			sink.accept(data);
+		}
+
+		// 名称与当前指标族相同，或者是族名加上这个类型的样本后缀，其他以族名开头的名称属于别的指标
+		private boolean inFamily(int ns, int nl) {
+			if (family == null || nl < familyLength || !regionEquals(ns, familyOffset, familyLength)) {
+				return false;
+			}
+			if (nl == familyLength) {
+				return true;
+			}
+			int p = ns + familyLength;
+			int e = ns + nl;
+			switch (type) {
+			case COUNTER:
+				return equals(p, e, "_total") || equals(p, e, "_created");
+			case SUMMARY:
+				return equals(p, e, "_count") || equals(p, e, "_sum") || equals(p, e, "_created");
+			case HISTOGRAM:
+				return equals(p, e, "_bucket") || equals(p, e, "_count") || equals(p, e, "_sum") || equals(p, e, "_created");
+			default:
+				return false;
+			}
+		}
+
+		private void summary(int suffix, int length, TagSet tags, double value) {
+			boolean count = length == 6 && startsWith(suffix, suffix + length, "_count");
+			boolean sum = length == 4 && startsWith(suffix, suffix + length, "_sum");
+			if (!count && !sum) {
+				// quantile 等其他样本不处理
+				return;
+			}
+
+			if (pending == null || !pending.getTags().equals(tags) || (count && pendingCount) || (sum && pendingSum)) {
+				pending = new RawData();
+				pending.setName(family);
+				pending.setType(Type.SUMMARY);
+				pending.setTags(tags);
+				pending.setValues(new double[2]);
+				pendingCount = false;
+				pendingSum = false;
+			}
+
+			if (count) {
+				pending.getValues()[0] = value;
+				pendingCount = true;
 			} else {
-				g.add(line);
+				pending.getValues()[1] = value;
+				pendingSum = true;
+			}
+
+			if (pendingCount && pendingSum) {
+				sink.accept(pending);
+				pending = null;
 			}
 		}
-		if (g != null) {
-			groups.add(g);
+
+		private void histogram(int suffix, int length, TagSet tags, double value) {
+			boolean bucket = length == 7 && startsWith(suffix, suffix + length, "_bucket");
+			boolean count = length == 6 && startsWith(suffix, suffix + length, "_count");
+			boolean sum = length == 4 && startsWith(suffix, suffix + length, "_sum");
+			if (!bucket && !count && !sum) {
+				return;
+			}
+
+			if (histogram == null || !histogram.equals(tags)) {
+				flushHistogram();
+				histogram = tags;
+				histogramCount = Double.NaN;
+				histogramSum = 0;
+			}
+
+			if (bucket) {
+				double bound = parseBound(le);
+				if (Double.isNaN(bound)) {
+					return;
+				}
+				if (bucketCount == bounds.length) {
+					bounds = Arrays.copyOf(bounds, bucketCount << 1);
+					buckets = Arrays.copyOf(buckets, bucketCount << 1);
+				}
+				bounds[bucketCount] = bound;
+				buckets[bucketCount] = value;
+				bucketCount ++;
+			} else if (count) {
+				histogramCount = value;
+			} else {
+				histogramSum = value;
+			}
 		}
-		
-		// create data
-		for (List<String> group : groups) {
-			String[] ary = StringUtils.split(StringUtils.substringAfter(group.get(0), "# TYPE "), " ");
-			String name = ary[0];
-			Type type = null;
+
+		private void flushHistogram() {
+			if (histogram != null && bucketCount > 0) {
+				// 按上界排序，没有 +Inf 时用 _count 补上
+				for (int i = 1; i < bucketCount; i ++) {
+					double bound = bounds[i];
+					double bucket = buckets[i];
+					int j = i - 1;
+					while (j >= 0 && bounds[j] > bound) {
+						bounds[j + 1] = bounds[j];
+						buckets[j + 1] = buckets[j];
+						j --;
+					}
+					bounds[j + 1] = bound;
+					buckets[j + 1] = bucket;
+				}
+				boolean inf = bounds[bucketCount - 1] == Double.POSITIVE_INFINITY;
+				double count = Double.isNaN(histogramCount) ? buckets[bucketCount - 1] : histogramCount;
+				int n = inf ? bucketCount : bucketCount + 1;
+
+				double[] values = new double[n + 2];
+				double[] upper = new double[n];
+				values[0] = count;
+				values[1] = histogramSum;
+				System.arraycopy(buckets, 0, values, 2, bucketCount);
+				System.arraycopy(bounds, 0, upper, 0, bucketCount);
+				if (!inf) {
+					values[n + 1] = count;
+					upper[n - 1] = Double.POSITIVE_INFINITY;
+				}
+
+				RawData data = new RawData();
+				data.setName(family);
+				data.setType(Type.HISTOGRAM);
+				data.setTags(histogram);
+				data.setValues(values);
+				data.setBounds(upper);
+				sink.accept(data);
+			}
+			histogram = null;
+			bucketCount = 0;
+		}
+
+		private double parseBound(String s) {
+			if (s == null) {
+				return Double.NaN;
+			} else if (s.equals("+Inf") || s.equals("Inf")) {
+				return Double.POSITIVE_INFINITY;
+			}
 			try {
-				type = Type.valueOf(StringUtils.upperCase(ary[1]));
-			} catch (Exception e) {
-				type = Type.UNTYPED;
+				return Double.parseDouble(s);
+			} catch (NumberFormatException e) {
+				return Double.NaN;
 			}
+		}
 
-			for (int i = 1; i < group.size(); i ++) {
-				String t = StringUtils.substringBetween(group.get(i), "{", "}");
-				Map<String, String> tags = extractTags(t);
-				
-				RawData data = new RawData();
-				data.setName(name);
-				data.setType(type);
-				data.setTags(tags);
-				
-				if (type == Type.SUMMARY) {
-					double value1 = Double.valueOf(StringUtils.substringAfterLast(group.get(i), " "));
-					i ++;
-					double value2 = Double.valueOf(StringUtils.substringAfterLast(group.get(i), " "));
-					data.setValues(new double[] {value1, value2});
+		private int labels(int p, int e) {
+			while (p < e) {
+				while (p < e && (isSpace(b[p]) || b[p] == ',')) {
+					p ++;
+				}
+				if (p < e && b[p] == '}') {
+					return p + 1;
+				}
+
+				int ks = p;
+				while (p < e && b[p] != '=' && !isSpace(b[p])) {
+					p ++;
+				}
+				int kl = p - ks;
+				p = skipSpaces(p, e);
+				if (p >= e || b[p] != '=') {
+					return -1;
+				}
+				p = skipSpaces(p + 1, e);
+				if (p >= e || b[p] != '"') {
+					return -1;
+				}
+
+				int vs = ++p;
+				boolean escaped = false;
+				while (p < e && b[p] != '"') {
+					if (b[p] == '\\') {
+						escaped = true;
+						p ++;
+					}
+					p ++;
+				}
+				if (p >= e) {
+					return -1;
+				}
+
+				String value = escaped ? unescape(vs, p) : cache.get(b, vs, p - vs);
+				if (histogramLe && kl == 2 && b[ks] == 'l' && b[ks + 1] == 'e') {
+					le = value;
 				} else {
-					double value = Double.valueOf(StringUtils.substringAfterLast(group.get(i), " "));
-					data.setValues(new double[] {value});
+					builder.add(cache.get(b, ks, kl), value);
 				}
-				
-				list.add(data);
+				p ++;
+			}
+			return -1;
+		}
+
+		private String unescape(int s, int e) {
+			StringBuilder value = new StringBuilder(e - s);
+			String raw = new String(b, s, e - s, StandardCharsets.UTF_8);
+			for (int i = 0; i < raw.length(); i ++) {
+				char c = raw.charAt(i);
+				if (c == '\\' && i + 1 < raw.length()) {
+					c = raw.charAt(++i);
+					value.append(c == 'n' ? '\n' : c);
+				} else {
+					value.append(c);
+				}
+			}
+			return value.toString();
+		}
+
+		private Type parseType(int s, int e) {
+			if (equals(s, e, "counter")) {
+				return Type.COUNTER;
+			} else if (equals(s, e, "gauge")) {
+				return Type.GAUGE;
+			} else if (equals(s, e, "summary")) {
+				return Type.SUMMARY;
+			} else if (equals(s, e, "histogram")) {
+				return Type.HISTOGRAM;
+			} else {
+				return Type.UNTYPED;
 			}
 		}
-		
-		return list;
-	}
 
-	private Map<String, String> extractTags(String s) {
-		Map<String, String> map = new HashMap<>();
-		String[] ary = StringUtils.split(s, ",");
-		if (ary != null) {
-			for (String element : ary) {
-				if (StringUtils.isNotBlank(element)) {
-					String[] kv = StringUtils.split(element, "=");
-					if (kv != null && kv.length > 1) {
-						map.put(kv[0], StringUtils.replace(kv[1], "\"", ""));
+		private double parseDouble(int s, int e) {
+			valid = true;
+			int p = s;
+			boolean negative = false;
+			if (p < e && (b[p] == '-' || b[p] == '+')) {
+				negative = b[p] == '-';
+				p ++;
+			}
+
+			if (startsWith(p, e, "Inf") && e - p == 3) {
+				return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+			} else if (startsWith(p, e, "NaN") && e - p == 3) {
+				return Double.NaN;
+			}
+
+			// 常见的十进制数直接计算，其他格式交给 Double.parseDouble
+			long mantissa = 0;
+			int digits = 0;
+			int exponent = 0;
+			boolean any = false;
+			while (p < e && b[p] >= '0' && b[p] <= '9') {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b[p] - '0');
+					if (mantissa > 0) {
+						digits ++;
 					}
+				} else {
+					exponent ++;
 				}
+				any = true;
+				p ++;
+			}
+			if (p < e && b[p] == '.') {
+				p ++;
+				while (p < e && b[p] >= '0' && b[p] <= '9') {
+					if (digits < 18) {
+						mantissa = mantissa * 10 + (b[p] - '0');
+						if (mantissa > 0) {
+							digits ++;
+						}
+						exponent --;
+					}
+					any = true;
+					p ++;
+				}
+			}
+			if (any && p < e && (b[p] == 'e' || b[p] == 'E')) {
+				p ++;
+				boolean negativeExponent = false;
+				if (p < e && (b[p] == '-' || b[p] == '+')) {
+					negativeExponent = b[p] == '-';
+					p ++;
+				}
+				int n = 0;
+				int start = p;
+				while (p < e && b[p] >= '0' && b[p] <= '9' && n < 10000) {
+					n = n * 10 + (b[p] - '0');
+					p ++;
+				}
+				any = p > start;
+				exponent += negativeExponent ? -n : n;
+			}
+
+			if (any && p == e && mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+				double value = exponent >= 0 ? mantissa * POWERS[exponent] : mantissa / POWERS[-exponent];
+				return negative ? -value : value;
+			}
+
+			try {
+				return Double.parseDouble(new String(b, s, e - s, StandardCharsets.ISO_8859_1));
+			} catch (NumberFormatException ex) {
+				valid = false;
+				return 0;
 			}
 		}
-		return map;
+
+		private boolean regionEquals(int offset, int other, int length) {
+			for (int i = 0; i < length; i ++) {
+				if (b[offset + i] != b[other + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean equals(int p, int e, String s) {
+			return e - p == s.length() && startsWith(p, e, s);
+		}
+
+		private boolean startsWith(int p, int e, String s) {
+			if (e - p < s.length()) {
+				return false;
+			}
+			for (int i = 0; i < s.length(); i ++) {
+				if (b[p + i] != s.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int skipSpaces(int p, int e) {
+			while (p < e && isSpace(b[p])) {
+				p ++;
+			}
+			return p;
+		}
+
+		private static boolean isSpace(byte c) {
+			return c == ' ' || c == '\t' || c == '\r';
+		}
 	}
+
 }
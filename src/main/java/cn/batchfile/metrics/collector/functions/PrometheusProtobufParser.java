@@ -0,0 +1,308 @@
+package cn.batchfile.metrics.collector.functions;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.domain.RawData.Type;
+import cn.batchfile.metrics.collector.domain.TagSet;
+import cn.batchfile.metrics.collector.util.StringCache;
+
+// 解析 Prometheus protobuf 格式 (io.prometheus.client.MetricFamily, encoding=delimited)
+public class PrometheusProtobufParser implements DataParser {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PrometheusProtobufParser.class);
+	private static final Type[] TYPES = {Type.COUNTER, Type.GAUGE, Type.SUMMARY, Type.UNTYPED, Type.HISTOGRAM};
+	private static ThreadLocal<StringCache> CACHE = new ThreadLocal<StringCache>() {
+		protected StringCache initialValue() {
+			return new StringCache(4096);
+		};
+	};
+
+	@Override
+	public void parse(byte[] content, MetricFilter filter, Consumer<RawData> sink) {
+		try {
+			parseStrictly(content, filter, sink);
+		} catch (RuntimeException e) {
+			LOG.error("error when decode protobuf content", e);
+		}
+	}
+
+	@Override
+	public void parseStrictly(byte[] content, MetricFilter filter, Consumer<RawData> sink) {
+		new Reader(content, CACHE.get(), filter, sink).read();
+	}
+
+	private static class Reader {
+		private final byte[] b;
+		private final StringCache cache;
+		private final MetricFilter filter;
+		private final Consumer<RawData> sink;
+		private final TagSet.Builder builder = new TagSet.Builder();
+		private int pos;
+
+		Reader(byte[] b, StringCache cache, MetricFilter filter, Consumer<RawData> sink) {
+			this.b = b;
+			this.cache = cache;
+			this.filter = filter;
+			this.sink = sink;
+		}
+
+		void read() {
+			while (pos < b.length) {
+				int length = (int)varint();
+				int end = pos + length;
+				family(end);
+				pos = end;
+			}
+		}
+
+		private void family(int end) {
+			String name = null;
+			Type type = Type.COUNTER;
+
+			// name 和 type 在 metric 之前，先扫描一遍
+			int start = pos;
+			while (pos < end) {
+				int tag = (int)varint();
+				int field = tag >>> 3;
+				if (field == 1) {
+					int length = (int)varint();
+					name = cache.get(b, pos, length);
+					pos += length;
+				} else if (field == 3) {
+					int t = (int)varint();
+					type = t >= 0 && t < TYPES.length ? TYPES[t] : Type.UNTYPED;
+				} else {
+					skip(tag);
+				}
+			}
+
+			// 名称被过滤的指标族整体跳过
+			if (name == null || !filter.test(name)) {
+				return;
+			}
+
+			pos = start;
+			while (pos < end) {
+				int tag = (int)varint();
+				if (tag >>> 3 == 4) {
+					int length = (int)varint();
+					int metricEnd = pos + length;
+					metric(name, type, metricEnd);
+					pos = metricEnd;
+				} else {
+					skip(tag);
+				}
+			}
+		}
+
+		private void metric(String name, Type type, int end) {
+			double value = 0;
+			double count = 0;
+			double sum = 0;
+			int histogram = -1;
+			int histogramEnd = -1;
+
+			while (pos < end) {
+				int tag = (int)varint();
+				int field = tag >>> 3;
+				if (field == 1) {
+					int length = (int)varint();
+					label(pos + length);
+				} else if (field == 2 || field == 3 || field == 5) {
+					int length = (int)varint();
+					value = single(pos + length);
+				} else if (field == 4) {
+					int length = (int)varint();
+					int e = pos + length;
+					while (pos < e) {
+						int t = (int)varint();
+						if (t >>> 3 == 1) {
+							count = varint();
+						} else if (t >>> 3 == 2) {
+							sum = fixed64();
+						} else {
+							skip(t);
+						}
+					}
+				} else if (field == 7) {
+					int length = (int)varint();
+					histogram = pos;
+					histogramEnd = pos + length;
+					pos = histogramEnd;
+				} else {
+					skip(tag);
+				}
+			}
+
+			TagSet tags = builder.build();
+			if (filter.hasLabelRules() && !filter.test(name, tags)) {
+				return;
+			}
+
+			if (type == Type.SUMMARY) {
+				emit(name, type, tags, new double[] {count, sum});
+			} else if (type == Type.HISTOGRAM && histogram >= 0) {
+				pos = histogram;
+				histogram(name, tags, histogramEnd);
+			} else {
+				emit(name, type, tags, new double[] {value});
+			}
+		}
+
+		private void histogram(String name, TagSet tags, int end) {
+			// 与文本格式一致，所有 bucket 合并成一条数据，values 依次是 count、sum 和每个 bucket 的累计数量
+			double count = 0;
+			double sum = 0;
+			double[] bounds = new double[16];
+			double[] buckets = new double[16];
+			int n = 0;
+			while (pos < end) {
+				int tag = (int)varint();
+				int field = tag >>> 3;
+				if (field == 1) {
+					count = varint();
+				} else if (field == 2) {
+					sum = fixed64();
+				} else if (field == 3) {
+					int length = (int)varint();
+					int e = pos + length;
+					double cumulative = 0;
+					double bound = Double.POSITIVE_INFINITY;
+					while (pos < e) {
+						int t = (int)varint();
+						if (t >>> 3 == 1) {
+							cumulative = varint();
+						} else if (t >>> 3 == 2) {
+							bound = fixed64();
+						} else {
+							skip(t);
+						}
+					}
+					if (n == bounds.length) {
+						bounds = Arrays.copyOf(bounds, n << 1);
+						buckets = Arrays.copyOf(buckets, n << 1);
+					}
+					bounds[n] = bound;
+					buckets[n] = cumulative;
+					n ++;
+				} else {
+					skip(tag);
+				}
+			}
+
+			if (n == 0 || bounds[n - 1] != Double.POSITIVE_INFINITY) {
+				if (n == bounds.length) {
+					bounds = Arrays.copyOf(bounds, n + 1);
+					buckets = Arrays.copyOf(buckets, n + 1);
+				}
+				bounds[n] = Double.POSITIVE_INFINITY;
+				buckets[n] = count;
+				n ++;
+			}
+
+			double[] values = new double[n + 2];
+			values[0] = count;
+			values[1] = sum;
+			System.arraycopy(buckets, 0, values, 2, n);
+			RawData data = new RawData();
+			data.setName(name);
+			data.setType(Type.HISTOGRAM);
+			data.setTags(tags);
+			data.setValues(values);
+			data.setBounds(Arrays.copyOf(bounds, n));
+			sink.accept(data);
+		}
+
+		private void emit(String name, Type type, TagSet tags, double[] values) {
+			RawData data = new RawData();
+			data.setName(name);
+			data.setType(type);
+			data.setTags(tags);
+			data.setValues(values);
+			sink.accept(data);
+		}
+
+		private void label(int end) {
+			String key = null;
+			String value = "";
+			while (pos < end) {
+				int tag = (int)varint();
+				int field = tag >>> 3;
+				if (field == 1 || field == 2) {
+					int length = (int)varint();
+					String s = cache.get(b, pos, length);
+					pos += length;
+					if (field == 1) {
+						key = s;
+					} else {
+						value = s;
+					}
+				} else {
+					skip(tag);
+				}
+			}
+			if (key != null) {
+				builder.add(key, value);
+			}
+		}
+
+		private double single(int end) {
+			double value = 0;
+			while (pos < end) {
+				int tag = (int)varint();
+				if (tag >>> 3 == 1 && (tag & 7) == 1) {
+					value = fixed64();
+				} else {
+					skip(tag);
+				}
+			}
+			return value;
+		}
+
+		private long varint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte v = b[pos ++];
+				value |= (long)(v & 0x7f) << shift;
+				if (v >= 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("malformed varint at " + pos);
+		}
+
+		private double fixed64() {
+			long value = 0;
+			for (int i = 0; i < 8; i ++) {
+				value |= (long)(b[pos ++] & 0xff) << (i * 8);
+			}
+			return Double.longBitsToDouble(value);
+		}
+
+		private void skip(int tag) {
+			switch (tag & 7) {
+			case 0:
+				varint();
+				break;
+			case 1:
+				pos += 8;
+				break;
+			case 2:
+				int length = (int)varint();
+				pos += length;
+				break;
+			case 5:
+				pos += 4;
+				break;
+			default:
+				throw new IllegalArgumentException("unsupported wire type " + (tag & 7) + " at " + pos);
+			}
+		}
+	}
+
+}
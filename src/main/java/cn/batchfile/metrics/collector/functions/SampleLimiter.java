@@ -0,0 +1,92 @@
+package cn.batchfile.metrics.collector.functions;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.util.Hashing;
+import cn.batchfile.metrics.collector.util.SeriesId;
+
+public class SampleLimiter implements Consumer<RawData> {
+
+	private final int limit;
+	private final int familyLimit;
+	private final Consumer<RawData> sink;
+	private final Set<Long> series = new HashSet<>();
+	// 超过限制被丢弃的序列，重复出现时同样丢弃
+	private final Set<Long> dropped = new HashSet<>();
+	private final Map<String, int[]> families = new HashMap<>();
+	private int samples;
+	private String exceeded;
+
+	public SampleLimiter(int limit, int familyLimit, Consumer<RawData> sink) {
+		this.limit = limit;
+		this.familyLimit = familyLimit;
+		this.sink = sink;
+	}
+
+	@Override
+	public void accept(RawData data) {
+		// 没有限制时只计数
+		if (limit <= 0 && familyLimit <= 0) {
+			samples ++;
+			sink.accept(data);
+			return;
+		}
+		
+		// 重复的序列不计数，数据照常输出
+		long hash = hash(data);
+		if (!series.add(hash)) {
+			if (!dropped.contains(hash)) {
+				sink.accept(data);
+			}
+			return;
+		}
+
+		if (limit > 0 && series.size() > limit) {
+			if (exceeded == null) {
+				exceeded = "sample limit " + limit;
+			}
+			dropped.add(hash);
+			return;
+		}
+
+		if (familyLimit > 0) {
+			int[] count = families.computeIfAbsent(data.getName(), name -> new int[1]);
+			if (++count[0] > familyLimit) {
+				if (exceeded == null) {
+					exceeded = "family sample limit " + familyLimit + ", name: " + data.getName();
+				}
+				dropped.add(hash);
+				return;
+			}
+		}
+
+		sink.accept(data);
+	}
+
+	public int getSeries() {
+		return Math.max(samples, series.size());
+	}
+
+	public boolean isExceeded() {
+		return exceeded != null;
+	}
+
+	public String getExceeded() {
+		return exceeded;
+	}
+
+	private static long hash(RawData data) {
+		long h = Hashing.update(Hashing.seed(), data.getName());
+		if (data.getTags() != null) {
+			// 标签的顺序不固定，按条目分别计算后相加
+			h = Hashing.update(h, SeriesId.labelHash(Hashing.seed(), data.getTags()));
+		}
+		return Hashing.mix(h);
+	}
+
+}
@@ -1,52 +1,54 @@
 package cn.batchfile.metrics.collector.functions;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.function.Function;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import cn.batchfile.metrics.collector.domain.RawData;
 import cn.batchfile.metrics.collector.domain.RawData.Type;
 
-public class SpringBootDataParser implements Function<StringBuilder, List<RawData>> {
+public class SpringBootDataParser implements DataParser {
 
 	private static final Logger LOG = LoggerFactory.getLogger(SpringBootDataParser.class);
-	private static ThreadLocal<ObjectMapper> MAPPER = new ThreadLocal<ObjectMapper>() {
-		protected ObjectMapper initialValue() {
-			return new ObjectMapper();
-		};
-	};
+	private static final JsonFactory FACTORY = new JsonFactory();
 	
 	@Override
-	public List<RawData> apply(StringBuilder content) {
-		Map<String, Double> map = null;
-		if (content.length() > 0) {
-			try {
-				map = MAPPER.get().readValue(content.toString(), new TypeReference<Map<String, Double>>() {});
-			} catch (Exception e) {
-				LOG.error("error when deserialize content", e);
-			}
+	public void parse(byte[] content, MetricFilter filter, Consumer<RawData> sink) {
+		if (content.length == 0) {
+			return;
 		}
 		
-		List<RawData> list = new ArrayList<>();
-		if (map != null) {
-			for (Entry<String, Double> entry : map.entrySet()) {
-				RawData data = new RawData();
-				data.setName(entry.getKey());
-				data.setValues(new double[] {entry.getValue()});
-				data.setType(data.getName().startsWith("counter.") ? Type.COUNTER : Type.UNTYPED);
-				list.add(data);
+		try (JsonParser parser = FACTORY.createParser(content)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return;
+			}
+			
+			// 逐个读取 "name": value，不构造中间的 Map
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ((token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) && accept(filter, name)) {
+					RawData data = new RawData();
+					data.setName(name);
+					data.setValues(new double[] {parser.getDoubleValue()});
+					data.setType(name.startsWith("counter.") ? Type.COUNTER : Type.UNTYPED);
+					sink.accept(data);
+				} else {
+					parser.skipChildren();
+				}
 			}
+		} catch (Exception e) {
+			LOG.error("error when deserialize content", e);
 		}
-		
-		return list;
+	}
+	
+	private boolean accept(MetricFilter filter, String name) {
+		return filter.test(name) && (!filter.hasLabelRules() || filter.test(name, null));
 	}
 
 }
@@ -1,73 +1,98 @@
 package cn.batchfile.metrics.collector.functions;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.function.Function;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import cn.batchfile.metrics.collector.domain.RawData;
 import cn.batchfile.metrics.collector.domain.RawData.Type;
 
-public class YammerDataParser implements Function<StringBuilder, List<RawData>> {
+public class YammerDataParser implements DataParser {
 
 	private static final Logger LOG = LoggerFactory.getLogger(YammerDataParser.class);
-	private static ThreadLocal<ObjectMapper> MAPPER = new ThreadLocal<ObjectMapper>() {
-		protected ObjectMapper initialValue() {
-			return new ObjectMapper();
-		};
-	};
+	private static final JsonFactory FACTORY = new JsonFactory();
 	
 	@Override
-	public List<RawData> apply(StringBuilder content) {
-		Map<String, Object> map = null;
-		if (content.length() > 0) {
-			try {
-				map = MAPPER.get().readValue(content.toString(), new TypeReference<Map<String, Object>>() {});
-			} catch (Exception e) {
-				LOG.error("error when deserialize content", e);
-			}
+	public void parse(byte[] content, MetricFilter filter, Consumer<RawData> sink) {
+		if (content.length == 0) {
+			return;
 		}
 		
-		List<RawData> datas = new ArrayList<>();
-		if (map != null) {
-			parse(datas, map, null, null);
+		try (JsonParser parser = FACTORY.createParser(content)) {
+			if (parser.nextToken() == JsonToken.START_OBJECT) {
+				parse(parser, filter, sink);
+			}
+		} catch (Exception e) {
+			LOG.error("error when deserialize content", e);
 		}
-		
-		return datas;
 	}
 
-	private void parse(List<RawData> datas, Map<String, Object> map, String path, Type type) {
-		for (Entry<String, Object> entry : map.entrySet()) {
-			String key = entry.getKey();
-			Object value = entry.getValue();
+	private void parse(JsonParser parser, MetricFilter filter, Consumer<RawData> sink) throws Exception {
+		// 指标名称在同一个缓冲区中拼接，进入对象时追加，离开时截断
+		StringBuilder path = new StringBuilder(128);
+		Deque<Integer> lengths = new ArrayDeque<>();
+		Deque<Type> types = new ArrayDeque<>();
+		Type type = null;
+		
+		JsonToken token;
+		while ((token = parser.nextToken()) != null) {
+			if (token == JsonToken.END_OBJECT) {
+				if (lengths.isEmpty()) {
+					break;
+				}
+				path.setLength(lengths.pop());
+				type = types.pop();
+				continue;
+			}
 			
-			if (value instanceof Map<?, ?>) {
-				String p = path == null ? key : path + "." + key;
-				@SuppressWarnings("unchecked")
-				Map<String, Object> m = (Map<String, Object>)value;
-				parse(datas, m, p, type);
-			} else if (value instanceof String) {
-				if (key != null && key.equals("type")) {
-					try {
-						type = Type.valueOf(((String)value).toUpperCase());
-					} catch (Exception e) {
-						type = Type.UNTYPED;
-					}
+			String key = parser.getCurrentName();
+			token = parser.nextToken();
+			if (token == JsonToken.START_OBJECT) {
+				lengths.push(path.length());
+				types.push(type == null ? Type.UNTYPED : type);
+				if (path.length() > 0) {
+					path.append('.');
 				}
-			} else if (value instanceof Number) {
-				RawData data = new RawData();
-				data.setName(path + "." + key);
-				data.setValues(new double[] {((Number)value).doubleValue()});
-				data.setType(type == null ? Type.UNTYPED : type);
-				datas.add(data);
+				path.append(key);
+			} else if (token == JsonToken.VALUE_STRING) {
+				if ("type".equals(key)) {
+					type = parseType(parser.getText());
+				}
+			} else if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+				int length = path.length();
+				if (length > 0) {
+					path.append('.');
+				}
+				path.append(key);
+				
+				String name = path.toString();
+				if (filter.test(name) && (!filter.hasLabelRules() || filter.test(name, null))) {
+					RawData data = new RawData();
+					data.setName(name);
+					data.setValues(new double[] {parser.getDoubleValue()});
+					data.setType(type == null ? Type.UNTYPED : type);
+					sink.accept(data);
+				}
+				
+				path.setLength(length);
+			} else {
+				parser.skipChildren();
 			}
 		}
 	}
+	
+	private Type parseType(String value) {
+		try {
+			return Type.valueOf(value.toUpperCase());
+		} catch (Exception e) {
+			return Type.UNTYPED;
+		}
+	}
 }
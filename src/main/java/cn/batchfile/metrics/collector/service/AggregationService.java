@@ -0,0 +1,259 @@
+package cn.batchfile.metrics.collector.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import cn.batchfile.metrics.collector.config.AggregationConfig;
+import cn.batchfile.metrics.collector.config.BeatConfig;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import cn.batchfile.metrics.collector.domain.TagSet;
+import cn.batchfile.metrics.collector.functions.MetricFilter;
+import cn.batchfile.metrics.collector.util.Hashing;
+import cn.batchfile.metrics.collector.util.LongMap;
+import cn.batchfile.metrics.collector.util.SeriesId;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * 按规则把多个实例的序列合并成一个服务级别的序列，例如按 application 汇总请求速率，去掉 host 和 port。
+ * 周期与采集周期相同，每个原始序列在一个周期内只有一个值，周期结束以后计算并放入队列。
+ * 规则指定了输出名称时，匹配的多个指标合并成一个序列。
+ */
+@Service
+public class AggregationService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AggregationService.class);
+	private List<Rule> rules = new ArrayList<>();
+	private long period;
+	// 已经输出的周期，早于这个时间的数据被丢弃
+	private long closed;
+	// 周期开始时间 -> 分组 -> 每个原始序列的最后一个值
+	private final TreeMap<Long, Map<Key, LongMap<double[]>>> windows = new TreeMap<>();
+	private final TagSet.Builder builder = new TagSet.Builder();
+	private Counter emitCounter;
+	private Counter lateCounter;
+
+	@Autowired
+	private AggregationConfig aggregationConfig;
+
+	@Autowired
+	private BeatConfig beatConfig;
+
+	@Autowired
+	private QueueService queueService;
+
+	public AggregationService(MeterRegistry registry) {
+		emitCounter = Counter.builder("aggregation.emit.count").register(registry);
+		lateCounter = Counter.builder("aggregation.late.count").register(registry);
+	}
+
+	@PostConstruct
+	public void init() {
+		if (!aggregationConfig.isEnabled() || aggregationConfig.getRules() == null || aggregationConfig.getRules().isEmpty()) {
+			LOG.info("AGGREGATION DISABLED");
+			return;
+		}
+
+		for (AggregationConfig.Rule rule : aggregationConfig.getRules()) {
+			rules.add(new Rule(rule));
+		}
+		// 周期比采集周期长时，只保留最后一个值会丢掉之前的增量，所以始终使用采集周期
+		period = Math.max(beatConfig.getPeriod(), 1) * 1000L;
+		LOG.info("init aggregation, rules: {}, period: {}s", rules.size(), period / 1000);
+
+		queueService.consume(this::accept);
+		Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
+			try {
+				close(System.currentTimeMillis() - aggregationConfig.getDelay() * 1000L);
+			} catch (Exception e) {
+				LOG.error("error when close aggregation window", e);
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	private void accept(ScrapeBatch batch) {
+		// 汇总和聚合的结果也会进入队列，不再处理
+		if (batch.getResolution() != null || batch.isAggregated()) {
+			return;
+		}
+
+		long start = Math.floorDiv(batch.getTime(), period) * period;
+		synchronized (this) {
+			if (start < closed) {
+				lateCounter.increment(batch.size());
+				return;
+			}
+
+			Map<Key, LongMap<double[]>> groups = null;
+			for (int i = 0; i < batch.size(); i ++) {
+				String metric = batch.getMetric(i);
+				for (int r = 0; r < rules.size(); r ++) {
+					Rule rule = rules.get(r);
+					if (!rule.matches(metric, batch.getTags(i))) {
+						continue;
+					}
+					if (groups == null) {
+						groups = windows.computeIfAbsent(start, s -> new HashMap<>());
+					}
+					Key key = new Key(r, rule.name(metric), rule.group(batch.getTags(i), builder), batch.isDelta(i));
+					LongMap<double[]> sources = groups.computeIfAbsent(key, k -> new LongMap<>(16));
+
+					// 同一个原始序列在一个周期内出现多次（例如采集时间抖动），保留最后一个值
+					long id = SeriesId.hash(Hashing.seed(), batch.getHost(), batch.getPort(), metric, batch.getTags(i));
+					id = id == 0 ? 1 : id;
+					double[] value = sources.get(id);
+					if (value == null) {
+						sources.put(id, new double[] {batch.getValue(i)});
+					} else {
+						value[0] = batch.getValue(i);
+					}
+				}
+			}
+		}
+	}
+
+	private void close(long before) throws InterruptedException {
+		List<ScrapeBatch> batches = new ArrayList<>();
+		synchronized (this) {
+			long end = Math.floorDiv(before, period) * period;
+			Iterator<Entry<Long, Map<Key, LongMap<double[]>>>> iterator = windows.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Entry<Long, Map<Key, LongMap<double[]>>> window = iterator.next();
+				if (window.getKey() + period > end) {
+					break;
+				}
+
+				ScrapeBatch batch = new ScrapeBatch(null, 0, window.getKey(), window.getValue().size());
+				batch.setAggregated(true);
+				for (Entry<Key, LongMap<double[]>> group : window.getValue().entrySet()) {
+					Key key = group.getKey();
+					Rule rule = rules.get(key.rule);
+					// 增量相加以后仍然是增量，其余的运算结果是 gauge
+					batch.add(key.metric, null, key.tags, rule.apply(group.getValue()), key.delta && "sum".equals(rule.op));
+				}
+				batches.add(batch);
+				iterator.remove();
+			}
+			closed = Math.max(closed, end);
+		}
+
+		for (ScrapeBatch batch : batches) {
+			emitCounter.increment(batch.size());
+			queueService.put(batch);
+		}
+	}
+
+	private static class Rule {
+		private final MetricFilter filter;
+		private final List<String> by;
+		private final String op;
+		private final String name;
+		private final Map<String, String> names = new HashMap<>();
+
+		Rule(AggregationConfig.Rule rule) {
+			if (StringUtils.isBlank(rule.getMetric())) {
+				throw new IllegalArgumentException("aggregation rule without metric");
+			}
+			op = StringUtils.defaultIfBlank(rule.getOp(), "sum").toLowerCase();
+			if (!"sum".equals(op) && !"avg".equals(op) && !"min".equals(op) && !"max".equals(op) && !"count".equals(op)) {
+				throw new IllegalArgumentException("unsupported aggregation op: " + rule.getOp());
+			}
+			filter = MetricFilter.compile(Collections.singletonList(rule.getMetric()), null);
+			by = rule.getBy() == null ? Collections.emptyList() : rule.getBy();
+			name = StringUtils.trimToNull(rule.getName());
+		}
+
+		boolean matches(String metric, Map<String, String> tags) {
+			return filter.test(metric) && (!filter.hasLabelRules() || filter.test(metric, tags));
+		}
+
+		TagSet group(Map<String, String> tags, TagSet.Builder builder) {
+			for (String label : by) {
+				String value = tags == null ? null : tags.get(label);
+				if (value != null) {
+					builder.add(label, value);
+				}
+			}
+			return builder.build();
+		}
+
+		String name(String metric) {
+			if (name != null) {
+				return name;
+			}
+			return names.computeIfAbsent(metric, m -> m + ":" + op);
+		}
+
+		double apply(LongMap<double[]> sources) {
+			double[] result = {0, Double.NaN};
+			sources.forEach((id, value) -> {
+				double v = value[0];
+				if ("min".equals(op)) {
+					result[1] = Double.isNaN(result[1]) ? v : Math.min(result[1], v);
+				} else if ("max".equals(op)) {
+					result[1] = Double.isNaN(result[1]) ? v : Math.max(result[1], v);
+				} else {
+					result[0] += v;
+				}
+			});
+
+			switch (op) {
+			case "min":
+			case "max":
+				return result[1];
+			case "avg":
+				return sources.size() == 0 ? Double.NaN : result[0] / sources.size();
+			case "count":
+				return sources.size();
+			default:
+				return result[0];
+			}
+		}
+	}
+
+	private static class Key {
+		private final int rule;
+		private final String metric;
+		private final TagSet tags;
+		private final boolean delta;
+
+		Key(int rule, String metric, TagSet tags, boolean delta) {
+			this.rule = rule;
+			this.metric = metric;
+			this.tags = tags;
+			this.delta = delta;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((31 * rule + metric.hashCode()) * 31 + tags.hashCode()) * 31 + (delta ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return rule == k.rule && delta == k.delta && metric.equals(k.metric) && Objects.equals(tags, k.tags);
+		}
+	}
+
+}
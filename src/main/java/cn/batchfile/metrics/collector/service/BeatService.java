@@ -2,39 +2,60 @@ package cn.batchfile.metrics.collector.service;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 
 import cn.batchfile.metrics.collector.config.BeatConfig;
-import cn.batchfile.metrics.collector.domain.MetricData;
 import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import cn.batchfile.metrics.collector.domain.Target;
+import cn.batchfile.metrics.collector.domain.Target.State;
+import cn.batchfile.metrics.collector.functions.DataParser;
+import cn.batchfile.metrics.collector.functions.MetricFilter;
+import cn.batchfile.metrics.collector.functions.SampleLimiter;
+import cn.batchfile.metrics.collector.util.Hashing;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
-import io.micrometer.core.instrument.Timer;
 
 @Service
 public class BeatService {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(BeatService.class);
-	private Counter beatCounter;
-	private Counter errorCounter;
+	private static final long TICK = 100;
 	private Counter rawDataCounter;
 	private Counter inQueueCounter;
-	private Timer beatTimer;
-	private long lastRun = 0;
+	private Counter openCounter;
+	private MeterRegistry registry;
+	private Map<String, Target> targets = new ConcurrentHashMap<>();
+	// 采集目标的 host:port，推送的数据不能使用这些地址
+	private volatile Set<String> addresses = Collections.emptySet();
+	private volatile MetricFilter filter = MetricFilter.ALL;
+	private volatile List<String> filterIncludes;
+	private volatile List<String> filterExcludes;
+	// 编译失败的规则，避免每次都重新编译和记录日志
+	private List<String> failedIncludes;
+	private List<String> failedExcludes;
 
 	@Autowired
 	private BeatConfig beatConfig;
@@ -43,7 +64,7 @@ public class BeatService {
 	private QueueService queueService;
 	
 	@Autowired
-	private RestTemplate restTemplate;
+	private ScrapeService scrapeService;
 	
 	@Autowired
 	private EndpointService endpointService;
@@ -51,78 +72,240 @@ public class BeatService {
 	@Autowired
 	private MetricService metricService;
 	
+	@Autowired
+	private ShardService shardService;
+	
 	public BeatService(MeterRegistry registry) {
-		beatCounter = Counter.builder("beat.ok.count").register(registry);
-		errorCounter = Counter.builder("beat.error.count").register(registry);
+		this.registry = registry;
 		rawDataCounter = Counter.builder("beat.raw.data.count").register(registry);
 		inQueueCounter = Counter.builder("beat.in.queue.count").register(registry);
-		beatTimer = Timer.builder("beat.time").register(registry);
+		openCounter = Counter.builder("beat.circuit.open.count").register(registry);
+		Gauge.builder("beat.target.open.size", StringUtils.EMPTY, (s) -> targets.values().stream()
+				.filter(target -> target.getState() != State.CLOSED).count()).register(registry);
 	}
 	
 	@PostConstruct
 	public void init() {
+		// 每个目标在周期内有固定的相位，小粒度检查到期的目标，把负载分散到整个周期
 		Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
 			try {
 				beat();
 			} catch (Exception e) {
 				LOG.error("error in beat", e);
 			}
-		}, 10, 1, TimeUnit.SECONDS);
+		}, 10000, TICK, TimeUnit.MILLISECONDS);
 		
 	}
 	
 	private void beat() {
-		List<String> hosts = new ArrayList<>();
+		Set<String> hosts = new LinkedHashSet<>();
 		if (endpointService.getHosts() != null) {
 			hosts.addAll(endpointService.getHosts());
 		}
 		
 		if (beatConfig.getHosts() != null) {
-			for (String s : beatConfig.getHosts()) {
-				if (!hosts.contains(s)) {
-					hosts.add(s);
-				}
-			}
+			hosts.addAll(beatConfig.getHosts());
+		}
+		
+		// 分片模式下只抓取哈希环分配给本实例的目标
+		if (shardService.isEnabled()) {
+			hosts.removeIf(host -> !shardService.owns(host));
 		}
 		
 		long now = System.currentTimeMillis();
-		if (now - lastRun >= beatConfig.getPeriod() * 1000) {
-			hosts.parallelStream().forEach(host -> {
+		long period = beatConfig.getPeriod() * 1000L;
+		
+		// 移除已经下线或者不再属于本实例的目标
+		boolean changed = targets.keySet().retainAll(hosts);
+		
+		for (String host : hosts) {
+			Target target = targets.get(host);
+			if (target == null) {
 				try {
-					beatHost(host);
-				} catch (Exception e) {
-					LOG.error("error when get metrics, host: " + host, e);
+					target = new Target();
+					target.setUrl(host);
+					target.setUri(new URI(host));
+					schedule(target, period, now);
+					targets.put(host, target);
+					changed = true;
+				} catch (URISyntaxException e) {
+					LOG.error("error in host: " + host, e);
 				}
-			});
-			lastRun = now;
+				continue;
+			} else if (target.getPeriod() != period) {
+				schedule(target, period, now);
+				continue;
+			}
+			
+			long round = Math.floorDiv(now - target.getOffset(), period);
+			if (round > target.getRound()) {
+				target.setRound(round);
+				if (allowRequest(target, now)) {
+					scrape(target);
+				}
+			}
+		}
+		
+		if (changed) {
+			updateAddresses();
+		}
+	}
+	
+	private void updateAddresses() {
+		Set<String> addresses = new HashSet<>();
+		for (Target target : targets.values()) {
+			addresses.add(target.getUri().getHost() + ":" + target.getUri().getPort());
+		}
+		this.addresses = addresses;
+	}
+	
+	public boolean isTarget(String host, int port) {
+		return addresses.contains(host + ":" + port);
+	}
+	
+	public Collection<Target> getTargets() {
+		return targets.values();
+	}
+	
+	private void schedule(Target target, long period, long now) {
+		target.setPeriod(period);
+		target.setOffset(Math.floorMod(Hashing.hash(target.getUrl()), period));
+		
+		// 新目标从下一个相位点开始
+		target.setRound(Math.floorDiv(now - target.getOffset(), period));
+	}
+	
+	private boolean allowRequest(Target target, long now) {
+		synchronized (target) {
+			if (target.getState() == State.CLOSED) {
+				return true;
+			} else if (target.getState() == State.OPEN && now >= target.getRetryTime()) {
+				// 退避时间已到，放行一个探测请求
+				target.setState(State.HALF_OPEN);
+				return true;
+			} else {
+				openCounter.increment();
+				return false;
+			}
+		}
+	}
+	
+	private void onSuccess(Target target) {
+		synchronized (target) {
+			if (target.getState() != State.CLOSED) {
+				LOG.info("target recovered: {}", target.getUrl());
+			}
+			target.setState(State.CLOSED);
+			target.setFailures(0);
+			target.setBackoff(0);
+			target.setRetryTime(0);
+			target.setLastSuccess(System.currentTimeMillis());
 		}
 	}
 	
-	private void beatHost(String host) throws InterruptedException, URISyntaxException {
-		LOG.debug("get data from host: {}", host);
-		URI uri = new URI(host);
+	private void onFailure(Target target, Exception e) {
+		synchronized (target) {
+			target.setFailures(target.getFailures() + 1);
+			target.setLastError(e.toString());
+			
+			// 连续失败次数达到阈值，或者探测失败，断开并按指数退避
+			if (target.getState() == State.HALF_OPEN || target.getFailures() >= beatConfig.getFailureThreshold()) {
+				long backoff = target.getBackoff() == 0 ? beatConfig.getBackoff() * 1000L : target.getBackoff() * 2;
+				backoff = Math.min(backoff, beatConfig.getMaxBackoff() * 1000L);
+				if (target.getState() == State.CLOSED) {
+					LOG.warn("target is down: {}, failures: {}", target.getUrl(), target.getFailures());
+				}
+				target.setState(State.OPEN);
+				target.setBackoff(backoff);
+				target.setRetryTime(System.currentTimeMillis() + backoff);
+			}
+		}
+	}
+	
+	private void scrape(Target target) {
+		LOG.debug("get data from host: {}", target.getUrl());
+		URI uri = target.getUri();
 		
 		Date time = new Date();
-		final StringBuilder content = new StringBuilder();
-		beatTimer.record(() -> {
+		boolean started = scrapeService.scrape(uri, (contentType, content, error) -> {
+			if (error != null) {
+				onFailure(target, error);
+				return;
+			}
+			
+			onSuccess(target);
 			try {
-				content.append(restTemplate.getForObject(uri, String.class));
-				beatCounter.increment();
+				beatHost(target, time, contentType, content);
 			} catch (Exception e) {
-				errorCounter.increment();
+				LOG.error("error when get metrics, host: " + target.getUrl(), e);
 			}
 		});
-		LOG.debug("html: {}", content);
 		
-		Function<StringBuilder, List<RawData>> function = endpointService.PARSERS.get(uri.getPath());
-		if (function != null) {
-			List<RawData> datas = function.apply(content);
-			LOG.info("get data, host: {}, bytes: {}, size: {}", host, content.length(), datas.size());
+		if (!started) {
+			synchronized (target) {
+				if (target.getState() == State.HALF_OPEN) {
+					target.setState(State.OPEN);
+				}
+			}
+		}
+	}
+	
+	public MetricFilter getFilter() {
+		List<String> includes = beatConfig.getIncludes();
+		List<String> excludes = beatConfig.getExcludes();
+		if (!Objects.equals(includes, filterIncludes) || !Objects.equals(excludes, filterExcludes)) {
+			synchronized (this) {
+				List<String> newIncludes = includes == null ? null : new ArrayList<>(includes);
+				List<String> newExcludes = excludes == null ? null : new ArrayList<>(excludes);
+				if (Objects.equals(newIncludes, failedIncludes) && Objects.equals(newExcludes, failedExcludes)) {
+					return filter;
+				}
+				
+				// 编译成功以后再替换，规则有错误时继续使用之前的过滤器
+				try {
+					MetricFilter compiled = MetricFilter.compile(newIncludes, newExcludes);
+					filter = compiled;
+					filterIncludes = newIncludes;
+					filterExcludes = newExcludes;
+					failedIncludes = null;
+					failedExcludes = null;
+					LOG.info("compile metric filter, includes: {}, excludes: {}", filterIncludes, filterExcludes);
+				} catch (RuntimeException e) {
+					failedIncludes = newIncludes;
+					failedExcludes = newExcludes;
+					LOG.error("error when compile metric filter, keep the previous one, includes: " + newIncludes 
+							+ ", excludes: " + newExcludes, e);
+				}
+			}
+		}
+		return filter;
+	}
+	
+	private void beatHost(Target target, Date time, String contentType, byte[] content) throws InterruptedException {
+		URI uri = target.getUri();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("html: {}", new String(content, StandardCharsets.UTF_8));
+		}
+		
+		DataParser parser = endpointService.getParser(contentType, uri.getPath());
+		if (parser != null) {
+			// 解析时过滤名称，并限制样本数量
+			List<RawData> datas = new ArrayList<>();
+			SampleLimiter limiter = new SampleLimiter(beatConfig.getSampleLimit(), beatConfig.getFamilySampleLimit(), datas::add);
+			parser.parse(content, getFilter(), limiter);
+			LOG.info("get data, host: {}, bytes: {}, size: {}", uri, content.length, datas.size());
 			
-			// 过滤名称
-			datas = datas.stream().filter(
-					data -> beatConfig.getExcludes() == null || !beatConfig.getExcludes().contains(data.getName())
-			).collect(Collectors.toList());
+			target.setSeries(limiter.getSeries());
+			target.setLimited(limiter.getExceeded());
+			if (limiter.isExceeded()) {
+				Counter.builder("beat.sample.limit.count").tag("target", target.getUrl()).register(registry).increment();
+				if (StringUtils.equalsIgnoreCase(beatConfig.getSampleLimitAction(), "truncate")) {
+					LOG.warn("truncate scrape, host: {}, series: {}, {}", uri, limiter.getSeries(), limiter.getExceeded());
+				} else {
+					LOG.warn("reject scrape, host: {}, series: {}, {}", uri, limiter.getSeries(), limiter.getExceeded());
+					return;
+				}
+			}
 			
 			// 添加属性
 			datas.forEach(data -> {
@@ -132,21 +315,15 @@ public class BeatService {
 			});
 			rawDataCounter.increment(datas.size());
 			
-			// 计算指标数据
+			// 计算指标数据，整个批次一次放入队列
 			if (datas.size() > 0) {
-				List<MetricData> metrics = new ArrayList<>(datas.size());
+				ScrapeBatch batch = new ScrapeBatch(uri.getHost(), uri.getPort(), time.getTime(), datas.size());
 				for (RawData data : datas) {
-					List<MetricData> list = metricService.compose(data);
-					if (list != null) {
-						metrics.addAll(list);
-					}
-				}
-				
-				for (MetricData metric : metrics) {
-					queueService.put(metric);
+					metricService.compose(data, batch);
 				}
 				
-				inQueueCounter.increment(metrics.size());
+				queueService.put(batch);
+				inQueueCounter.increment(batch.size());
 			}
 		}
 	}
@@ -2,99 +2,276 @@ package cn.batchfile.metrics.collector.service;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import cn.batchfile.metrics.collector.config.CacheConfig;
 import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.util.SeriesId;
+import cn.batchfile.metrics.collector.util.SeriesLog;
+import cn.batchfile.metrics.collector.util.SeriesStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 @Service
 public class CacheService {
 	protected static final Logger LOG = LoggerFactory.getLogger(CacheService.class);
-	private Map<String, RawData> datas = new ConcurrentHashMap<>(1024 * 1024);
+	private static final int STRIPES = 64;
+	// 按序列 id 分段加锁，每段只保存 id、校验值、时间和上一次的取值
+	private SeriesStore[] stores = new SeriesStore[STRIPES];
+	private SeriesLog log;
+	private volatile SeriesLog.Snapshot snapshot;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * SeriesLog.ENTRY);
+	private Counter flushCounter;
+	private Counter expireCounter;
+	private Timer flushTimer;
+	private Timer compactTimer;
 	private static ThreadLocal<ObjectMapper> MAPPER = new ThreadLocal<ObjectMapper>() {
 		protected ObjectMapper initialValue() {
 			return new ObjectMapper();
 		};
 	};
 
+	@Autowired
+	private CacheConfig cacheConfig;
+
+	public CacheService(MeterRegistry registry) {
+		Gauge.builder("cache.series.size", StringUtils.EMPTY, (s) -> size()).register(registry);
+		Gauge.builder("cache.bytes", StringUtils.EMPTY, (s) -> bytes()).register(registry);
+		flushCounter = Counter.builder("cache.flush.count").register(registry);
+		expireCounter = Counter.builder("cache.expire.count").register(registry);
+		flushTimer = Timer.builder("cache.flush.time").register(registry);
+		compactTimer = Timer.builder("cache.compact.time").register(registry);
+	}
+
 	@PostConstruct
 	public void init() throws IOException {
-		//load counter from file
-		String home = System.getProperty("user.home");
-		File file = new File(new File(home), ".spring-boot-metrics-collector-counter");
-		if (file.exists()) {
-			List<String> lines = FileUtils.readLines(file, "UTF-8");
-			for (String line : lines) {
-				try {
-					RawData data = MAPPER.get().readValue(line, RawData.class);
-					datas.put(getKey(data), data);
-				} catch (Exception e) {
-					LOG.error("error when read data from tmp file", e);
-				}
+		for (int i = 0; i < STRIPES; i ++) {
+			stores[i] = new SeriesStore(cacheConfig.getInitialCapacity() / STRIPES, cacheConfig.isOffHeap());
+		}
+
+		// 预写日志中的数据比快照新，先同步读取日志
+		long before = System.currentTimeMillis() - cacheConfig.getTtl() * 1000L;
+		log = new SeriesLog(new File(cacheConfig.getPath()));
+		log.replayWal((id, check, time, v0, v1) -> {
+			if (time >= before) {
+				store(id).putIfNewer(id, check, time, v0, v1);
 			}
+		});
+
+		// 快照在后台加载，加载完成之前没有命中的序列到快照中二分查找
+		SeriesLog.Snapshot s = log.openSnapshot();
+		if (s != null) {
+			snapshot = s;
+			Thread loader = new Thread(() -> load(s, before), "cache-loader");
+			loader.setDaemon(true);
+			loader.start();
 		}
 
-		//save data every 10s
-		Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
-			StringBuilder s = new StringBuilder();
-			List<String> removes = new ArrayList<>();
-			long now = System.currentTimeMillis();
-			int count = 0;
-			for (Entry<String, RawData> entry : datas.entrySet()) {
-				if (now - entry.getValue().getTime() < 1800000) {
-					try {
-						s.append(MAPPER.get().writeValueAsString(entry.getValue())).append("\n");
-						count ++;
-					} catch (Exception e) {
-						LOG.error("error when write json", e);
+		// 导入旧版本的 JSON 文件，写入日志以后删除
+		File legacy = new File(new File(System.getProperty("user.home")), ".spring-boot-metrics-collector-counter");
+		if (legacy.exists()) {
+			importLegacy(legacy);
+			flush();
+			FileUtils.deleteQuietly(legacy);
+		}
+
+		// 定期把修改过的序列追加到预写日志，日志过大时写入新的快照
+		Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
+			try {
+				expire();
+				flush();
+				if (snapshot == null && log.getWalSize() >= cacheConfig.getWalMaxSize()) {
+					compact();
+				}
+			} catch (Exception e) {
+				LOG.error("error when save counter", e);
+			}
+		}, cacheConfig.getFlushInterval(), cacheConfig.getFlushInterval(), TimeUnit.SECONDS);
+	}
+	
+	@PreDestroy
+	public void destroy() throws IOException {
+		synchronized (log) {
+			flush();
+			log.close();
+		}
+	}
+	
+	// 保存本次的取值，上一次的取值写入 previous，没有上一次的取值时返回 false
+	public boolean getAndPut(RawData data, double[] previous) {
+		return getAndPut(SeriesId.of(data), SeriesId.check(data), data.getTime(), data.getValues(), previous);
+	}
+	
+	public boolean getAndPut(long id, long check, long time, double[] values, double[] previous) {
+		while (true) {
+			SeriesStore store = store(id);
+			synchronized (store) {
+				int index = store.indexOf(id);
+				if (index >= 0 && store.check(index) == check) {
+					if (previous != null) {
+						for (int i = 0; i < previous.length && i < SeriesStore.VALUES; i ++) {
+							previous[i] = store.value(index, i);
+						}
+					}
+					store.put(id, check, time, values);
+					return true;
+				} else if (index < 0) {
+					SeriesLog.Snapshot s = snapshot;
+					long k = s == null ? -1 : s.find(id);
+					if (k < 0 || s.check(k) == check) {
+						boolean found = k >= 0 && s.time(k) >= time - cacheConfig.getTtl() * 1000L;
+						if (found && previous != null) {
+							for (int i = 0; i < previous.length && i < SeriesStore.VALUES; i ++) {
+								previous[i] = s.value(k, i);
+							}
+						}
+						store.put(id, check, time, values);
+						return found;
 					}
-				} else {
-					removes.add(entry.getKey());
 				}
 			}
-			
-			try {
-				if (count > 0) {
-					FileUtils.writeByteArrayToFile(file, s.toString().getBytes("UTF-8"));
+			// id 冲突，探测下一个 id
+			id = SeriesId.next(id);
+		}
+	}
+	
+	// 逐条写入快照中的数据，已经有更新的数据时跳过
+	private void load(SeriesLog.Snapshot s, long before) {
+		long begin = System.currentTimeMillis();
+		try {
+			if (!s.verify()) {
+				LOG.error("invalid snapshot checksum, path: {}", cacheConfig.getPath());
+				return;
+			}
+			s.forEach((id, check, time, v0, v1) -> {
+				if (time >= before) {
+					SeriesStore store = store(id);
+					synchronized (store) {
+						store.putIfNewer(id, check, time, v0, v1);
+					}
+				}
+			});
+			// 快照中的数据比加载期间写入的数据旧，重新按时间排列以后才能从表头过期
+			for (SeriesStore store : stores) {
+				synchronized (store) {
+					store.sortByTime();
 				}
-			} catch (UnsupportedEncodingException e) {
-				LOG.error("error when write file", e);
-			} catch (IOException e) {
-				LOG.error("error when write file", e);
 			}
-			
-			for (String key : removes) {
-				datas.remove(key);
+			LOG.info("load counter snapshot, path: {}, entries: {}, size: {}, time: {}ms",
+					cacheConfig.getPath(), s.size(), size(), System.currentTimeMillis() - begin);
+		} catch (Exception e) {
+			LOG.error("error when load counter snapshot", e);
+		} finally {
+			snapshot = null;
+		}
+	}
+	
+	public long size() {
+		long size = 0;
+		for (SeriesStore store : stores) {
+			size += store == null ? 0 : store.size();
+		}
+		return size;
+	}
+	
+	public long bytes() {
+		long bytes = 0;
+		for (SeriesStore store : stores) {
+			bytes += store == null ? 0 : store.bytes();
+		}
+		return bytes;
+	}
+	
+	// 序列按写入顺序排列，每次只访问过期的序列
+	private void expire() {
+		long before = System.currentTimeMillis() - cacheConfig.getTtl() * 1000L;
+		int count = 0;
+		for (SeriesStore store : stores) {
+			synchronized (store) {
+				count += store.expire(before);
 			}
-			
-		}, 10, 10, TimeUnit.SECONDS);
+		}
+		expireCounter.increment(count);
 	}
 	
-	public void put(RawData data) {
-		datas.put(getKey(data), data);
+	// 每段修改过的序列作为一个批次，只有修改过的序列写入磁盘
+	private void flush() throws IOException {
+		long begin = System.nanoTime();
+		synchronized (log) {
+			int count = 0;
+			for (SeriesStore store : stores) {
+				synchronized (store) {
+					ensure(store.dirtyCount());
+					count += store.drainDirty((id, check, time, v0, v1) -> SeriesLog.write(buffer, id, check, time, v0, v1));
+				}
+				log.append(buffer);
+			}
+			if (count > 0) {
+				log.force();
+			}
+			flushCounter.increment(count);
+		}
+		flushTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+	}
+	
+	// 写入完整的快照，替换旧的快照并清空预写日志
+	private void compact() throws IOException {
+		long begin = System.nanoTime();
+		synchronized (log) {
+			flush();
+			SeriesLog.SnapshotWriter writer = log.snapshot();
+			for (SeriesStore store : stores) {
+				synchronized (store) {
+					ensure(store.size());
+					store.forEachSorted((id, check, time, v0, v1) -> SeriesLog.write(buffer, id, check, time, v0, v1));
+				}
+				writer.write(buffer);
+			}
+			writer.commit();
+		}
+		compactTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+		LOG.info("compact counter, size: {}, time: {}ms", size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
 	}
 	
-	public RawData get(RawData data) {
-		return datas.get(getKey(data));
+	private void ensure(int entries) {
+		if (buffer.capacity() < entries * SeriesLog.ENTRY) {
+			buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(entries * SeriesLog.ENTRY) << 1);
+		}
+		buffer.clear();
+	}
+	
+	private void importLegacy(File file) throws IOException {
+		List<String> lines = FileUtils.readLines(file, "UTF-8");
+		for (String line : lines) {
+			try {
+				RawData data = MAPPER.get().readValue(line, RawData.class);
+				getAndPut(data, null);
+			} catch (Exception e) {
+				LOG.error("error when read data from tmp file", e);
+			}
+		}
+		LOG.info("import counter from file: {}, size: {}", file, size());
 	}
 	
-	private String getKey(RawData data) {
-		return String.format("%s_%s_%s_%s", data.getHost(), data.getPort(), data.getName(), data.getTags());
+	private SeriesStore store(long id) {
+		return stores[(int)(id >>> 58)];
 	}
 
 }
@@ -1,10 +1,10 @@
 package cn.batchfile.metrics.collector.service;
 
-import cn.batchfile.metrics.collector.domain.MetricData;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
 
 @FunctionalInterface
 public interface Consumer {
 
-	void consume(MetricData metric);
+	void consume(ScrapeBatch batch);
 
 }
@@ -1,18 +1,13 @@
 package cn.batchfile.metrics.collector.service;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
-import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -27,7 +22,9 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import cn.batchfile.metrics.collector.config.ElasticsearchConfig;
-import cn.batchfile.metrics.collector.domain.MetricData;
+import cn.batchfile.metrics.collector.config.RollupConfig;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import cn.batchfile.metrics.collector.functions.ChangeFilter;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
@@ -41,15 +38,22 @@ public class ElasticsearchService {
 			return new ObjectMapper();
 		};
 	};
-	private BlockingQueue<MetricData> queue;
 	private Counter writeCounter;
 	private Counter errorCounter;
+	private Counter skipCounter;
+	private ChangeFilter changes;
 	private Timer writeTimer;
-	private boolean run = true;
+	// 只在队列的读取线程中访问
+	private final Map<String, String> actions = new HashMap<>();
+	private final StringBuilder body = new StringBuilder();
+	private int count;
 	
 	@Autowired
 	private ElasticsearchConfig elasticsearchConfig;
 	
+	@Autowired
+	private RollupConfig rollupConfig;
+	
 	@Autowired
 	private RestTemplate restTemplate;
 	
@@ -59,9 +63,9 @@ public class ElasticsearchService {
 	public ElasticsearchService(MeterRegistry registry) {
 		writeCounter = Counter.builder("elasticsearch.write.ok.count").register(registry);
 		errorCounter = Counter.builder("elasticsearch.write.error.count").register(registry);
+		skipCounter = Counter.builder("elasticsearch.write.skip.count").register(registry);
 		writeTimer = Timer.builder("elasticsearch.write.time").register(registry);
-		Gauge.builder("elasticsearch.write.queue.size", StringUtils.EMPTY, 
-				(s) -> queue == null ? 0 : queue.size()).register(registry);
+		Gauge.builder("elasticsearch.write.queue.size", StringUtils.EMPTY, (s) -> count).register(registry);
 	}
 	
 	@PostConstruct
@@ -71,71 +75,88 @@ public class ElasticsearchService {
 			return;
 		}
 		
-		int capacity = 100 * elasticsearchConfig.getWorker() * elasticsearchConfig.getBulkMaxSize() * elasticsearchConfig.getMaxRetries();
-		queue = new LinkedBlockingQueue<>(capacity);
-		LOG.info("init elasticsearch writer, capacity: {}, workers: {}", capacity, elasticsearchConfig.getWorker());
+		changes = new ChangeFilter(elasticsearchConfig.getHeartbeat());
+		LOG.info("init elasticsearch writer, bulk max size: {}, heartbeat: {}", 
+				elasticsearchConfig.getBulkMaxSize(), elasticsearchConfig.getHeartbeat());
 		
-		Executors.newFixedThreadPool(elasticsearchConfig.getWorker()).submit(() -> {
-			while (run) {
-				try {
-					consumer();
-				} catch (Exception e) {
-					LOG.error("error when consumer", e);
-				}
-			}
-		});
-		
-		queueService.consume((MetricData metric) -> {
-			try {
-				queue.offer(metric, 1, TimeUnit.SECONDS);
-			} catch (Exception e) {
-				LOG.error("error when consumer", e);
-			}
-		});
+		// 在队列的读取线程中直接写入，写入完成之前不再读取，队列按行数限制的内存同时限制了这里的数据
+		queueService.consume(this::append, this::flush);
 	}
 	
-	@PreDestroy
-	public void destroy() {
-		run = false;
+	// 把批次中的数据追加到 bulk 请求，满 bulk_max_size 条时写入，批次可以跨请求
+	private void append(ScrapeBatch batch) {
+		boolean series = "series".equals(elasticsearchConfig.getDocument());
+		// 汇总数据按精度写入各自的索引
+		String action = actions.computeIfAbsent(StringUtils.defaultString(batch.getResolution()), resolution -> {
+			String pattern = resolution.isEmpty() ? elasticsearchConfig.getIndex() : String.format(rollupConfig.getIndex(), resolution);
+			String indexName = new SimpleDateFormat(pattern).format(new Date());
+			return String.format("{\"index\":{\"_index\":\"%s\",\"_type\":\"metric\"}}\n", indexName);
+		});
+		int end;
+		for (int i = 0; i < batch.size(); i = end) {
+			end = series ? batch.seriesEnd(i) : i + 1;
+			if (elasticsearchConfig.isOmitZero() && isZero(batch, i, end)) {
+				continue;
+			}
+			// 没有变化的值不再写入，heartbeat 个周期后再写一次
+			if (!changes.test(batch, i, end)) {
+				skipCounter.increment(end - i);
+				continue;
+			}
+			body.append(action);
+			if (series) {
+				batch.appendSeriesJson(body, i, end);
+			} else {
+				batch.appendJson(body, i);
+			}
+			body.append('\n');
+			if (++ count >= elasticsearchConfig.getBulkMaxSize()) {
+				flush();
+			}
+		}
 	}
 	
-	private void consumer() throws InterruptedException {
-		List<MetricData> list = new ArrayList<>();
-		while (list.size() < elasticsearchConfig.getBulkMaxSize()) {
-			MetricData data = queue.poll(1, TimeUnit.SECONDS);
-			if (data == null) {
-				break;
-			} else if (!elasticsearchConfig.isOmitZero() || data.getValue() != 0) {
-				list.add(data);
-			}
+	// 队列中暂时没有数据时，写入不满 bulk_max_size 条的请求
+	private void flush() {
+		if (count == 0) {
+			return;
 		}
 		
-		if (list.size() > 0) {
-			final String indexName = new SimpleDateFormat(elasticsearchConfig.getIndex()).format(new Date());
-			List<String> hosts = elasticsearchConfig.getHosts();
-			String host = hosts.size() == 1 ? hosts.get(0) : hosts.get(new Random().nextInt(hosts.size()));
-			write(list, indexName, host);
+		List<String> hosts = elasticsearchConfig.getHosts();
+		String host = hosts.size() == 1 ? hosts.get(0) : hosts.get(new Random().nextInt(hosts.size()));
+		// 写入失败时，这个请求中的序列下次不再按没有变化跳过
+		if (write(body.toString(), count, host)) {
+			changes.commit();
+		} else {
+			changes.reset();
 		}
+		body.setLength(0);
+		count = 0;
+		// 下一个请求重新计算索引名称
+		actions.clear();
 	}
 	
-	private void write(List<MetricData> metrics, final String indexName, String host) {
-		List<String> lines = new ArrayList<>();
-		for (MetricData metric : metrics) {
-			composeLine(lines, metric, indexName);
+	private static boolean isZero(ScrapeBatch batch, int i, int end) {
+		for (int j = i; j < end; j ++) {
+			if (batch.getValue(j) != 0) {
+				return false;
+			}
 		}
-		LOG.debug("line count: {}", lines.size());
-		
+		return true;
+	}
+	
+	private boolean write(String body, int size, String host) {
 		final String url = String.format("http://%s/_bulk", host);
-		String body = StringUtils.join(lines, "");
+		LOG.debug("line count: {}", size * 2);
 
-		writeTimer.record(() -> {
+		return writeTimer.record(() -> {
 			int i = 0;
 			while (i < elasticsearchConfig.getMaxRetries()) {
 				try {
 					bulk(url, body);
-					LOG.info("write data to elasticsearch, size: {}", metrics.size());
+					LOG.info("write data to elasticsearch, size: {}", size);
 					writeCounter.increment();
-					break;
+					return true;
 				} catch (Exception e) {
 					if (++i >= elasticsearchConfig.getMaxRetries()) {
 						LOG.error("error when write elasticsearch", e);
@@ -145,6 +166,7 @@ public class ElasticsearchService {
 					}
 				}
 			}
+			return false;
 		});
 	}
 	
@@ -168,24 +190,4 @@ public class ElasticsearchService {
 		}
 	}
 	
-	private void composeLine(List<String> lines, MetricData metric, String index) {
-		if (elasticsearchConfig.isOmitZero() && metric.getValue() == 0) {
-			return;
-		}
-		
-		String s0 = String.format("{\"index\":{\"_index\":\"%s\",\"_type\":\"metric\"}}\n", index);
-		
-		String s1 = null;
-		try { 
-			s1 = MAPPER.get().writeValueAsString(metric) + '\n';
-		} catch (Exception e) {
-			throw new RuntimeException("error when convert metric data to json", e);
-		}
-		
-		if (s0 != null && s1 != null) {
-			lines.add(s0);
-			lines.add(s1);
-		}
-	}
-	
 }
@@ -3,13 +3,20 @@ package cn.batchfile.metrics.collector.service;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
 
 import javax.annotation.PostConstruct;
 
@@ -26,21 +33,41 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import cn.batchfile.metrics.collector.config.BeatConfig;
-import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.domain.Instance;
+import cn.batchfile.metrics.collector.functions.DataParser;
 import cn.batchfile.metrics.collector.functions.PrometheusDataParser;
+import cn.batchfile.metrics.collector.functions.PrometheusProtobufParser;
 import cn.batchfile.metrics.collector.functions.SpringBootDataParser;
 import cn.batchfile.metrics.collector.functions.YammerDataParser;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
 
 @Service
 public class EndpointService {
 	private static final Logger LOG = LoggerFactory.getLogger(EndpointService.class);
-	public Map<String, Function<StringBuilder, List<RawData>>> PARSERS = new LinkedHashMap<String, Function<StringBuilder, List<RawData>>>();
+	private static ThreadLocal<ObjectMapper> MAPPER = new ThreadLocal<ObjectMapper>() {
+		protected ObjectMapper initialValue() {
+			return new ObjectMapper();
+		};
+	};
+	public static final String PROTOBUF = "application/vnd.google.protobuf";
+	public static final String OPENMETRICS = "application/openmetrics-text";
+	public static final String TEXT = "text/plain";
+	public Map<String, DataParser> PARSERS = new LinkedHashMap<String, DataParser>();
+	public Map<String, DataParser> CONTENT_PARSERS = new LinkedHashMap<String, DataParser>();
 	
+	private static final long PROBE_RETRY = 600000;
 	private Timer eurekaTimer;
 	private List<String> hosts = new ArrayList<>();
+	private Map<String, Instance> probes = new HashMap<>();
+	private Map<String, Instance> registry = new LinkedHashMap<>();
+	private Counter deltaMismatchCounter;
+	private ExecutorService probeExecutor;
 	
 	@Autowired
 	private BeatConfig beatConfig;
@@ -50,7 +77,25 @@ public class EndpointService {
 	
 	public EndpointService(MeterRegistry registry) {
 		eurekaTimer = Timer.builder("eureka.time").register(registry);
+		deltaMismatchCounter = Counter.builder("eureka.delta.mismatch.count").register(registry);
+	}
+	
+	@PostConstruct
+	public void init() {
+		probeExecutor = Executors.newFixedThreadPool(beatConfig.getDiscoveryConcurrency());
 		
+		//初始化解析器，顺序很重要，用来寻找指标端点
+		PARSERS.put("/prometheus", new PrometheusDataParser());
+		PARSERS.put("/yammer/metrics", new YammerDataParser());
+		PARSERS.put("/actuator/prometheus", new PrometheusDataParser());
+		PARSERS.put("/metrics", new SpringBootDataParser());
+		
+		//按响应的 Content-Type 选择解析器，JSON 格式需要根据路径区分
+		CONTENT_PARSERS.put(PROTOBUF, new PrometheusProtobufParser());
+		CONTENT_PARSERS.put(OPENMETRICS, new PrometheusDataParser());
+		CONTENT_PARSERS.put(TEXT, new PrometheusDataParser());
+		
+		//解析器初始化以后再开始刷新
 		Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
 			try {
 				refresh();
@@ -60,83 +105,177 @@ public class EndpointService {
 		}, 0, 10, TimeUnit.SECONDS);
 	}
 	
-	@PostConstruct
-	public void init() {
-		//初始化解析器，顺序很重要，用来寻找指标端点
-		PARSERS.put("/prometheus", new PrometheusDataParser());
-		PARSERS.put("/yammer/metrics", new YammerDataParser());
-		PARSERS.put("/actuator/prometheus", new PrometheusDataParser());
-		PARSERS.put("/metrics", new SpringBootDataParser());
+	public DataParser getParser(String contentType, String path) {
+		if (StringUtils.isNotEmpty(contentType)) {
+			String mediaType = StringUtils.lowerCase(StringUtils.trim(StringUtils.substringBefore(contentType, ";")));
+			DataParser parser = CONTENT_PARSERS.get(mediaType);
+			if (parser != null) {
+				return parser;
+			}
+		}
+		return PARSERS.get(path);
 	}
 	
 	public List<String> getHosts() {
 		return hosts;
 	}
 	
-	private void refresh() {
+	public List<Instance> getInstances() {
+		return new ArrayList<>(registry.values());
+	}
+	
+	private void refresh() throws Exception {
 		if (beatConfig != null && StringUtils.isNotEmpty(beatConfig.getEureka())) {
 			List<String> hosts = getEurekaHosts(beatConfig.getEureka());
 			this.hosts = hosts;
 		}
 	}
 	
-	@SuppressWarnings("rawtypes")
-	private List<String> getEurekaHosts(String eureka) {
-		HttpHeaders headers = new HttpHeaders();
-		headers.setContentType(MediaType.APPLICATION_JSON);
-		HttpEntity<?> entity = new HttpEntity<>("parameters", headers);
+	private List<String> getEurekaHosts(String eureka) throws Exception {
+		boolean full = true;
+		if (beatConfig.isEurekaDelta() && !registry.isEmpty()) {
+			try {
+				// 增量更新本地注册表，hashcode 不一致时再全量获取
+				JsonNode delta = fetch(StringUtils.removeEnd(eureka, "/") + "/delta");
+				Map<String, Instance> registry = new LinkedHashMap<>(this.registry);
+				for (Instance instance : parse(delta)) {
+					if (StringUtils.equals(instance.getActionType(), "DELETED")) {
+						registry.remove(instance.getInstanceId());
+					} else {
+						registry.put(instance.getInstanceId(), instance);
+					}
+				}
+				
+				String hashcode = delta.path("applications").path("apps__hashcode").asText();
+				if (StringUtils.equals(hashcode, getHashcode(registry.values()))) {
+					this.registry = registry;
+					full = false;
+				} else {
+					LOG.info("eureka hashcode mismatch, remote: {}, local: {}", hashcode, getHashcode(registry.values()));
+					deltaMismatchCounter.increment();
+				}
+			} catch (Exception e) {
+				LOG.error("error when get eureka delta", e);
+			}
+		}
 		
-		List<String> hosts = new ArrayList<>();
+		if (full) {
+			Map<String, Instance> registry = new LinkedHashMap<>();
+			for (Instance instance : parse(fetch(eureka))) {
+				registry.put(instance.getInstanceId(), instance);
+			}
+			this.registry = registry;
+		}
+		
+		return probe(new ArrayList<>(registry.values()));
+	}
+	
+	private JsonNode fetch(String url) throws Exception {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+		HttpEntity<?> entity = new HttpEntity<>(headers);
 		
 		long begin = System.currentTimeMillis();
-		ResponseEntity<Map> resp = restTemplate.exchange(eureka, HttpMethod.GET, entity, Map.class);
+		ResponseEntity<byte[]> resp = restTemplate.exchange(url, HttpMethod.GET, entity, byte[].class);
 		eurekaTimer.record(System.currentTimeMillis() - begin, TimeUnit.MILLISECONDS);
 		
-		@SuppressWarnings("unchecked")
-		Map<String, Object> map = resp.getBody();
-		lookup(hosts, new StringBuilder(), map);
-
-		return hosts;
+		return MAPPER.get().readTree(resp.getBody());
 	}
-
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private void lookup(List<String> hosts, StringBuilder status, Map<String, Object> map) {
-		LOG.debug("get map from eureka: {}", map);
+	
+	private List<Instance> parse(JsonNode root) {
+		List<Instance> instances = new ArrayList<>();
+		for (JsonNode application : elements(root.path("applications").path("application"))) {
+			for (JsonNode node : elements(application.path("instance"))) {
+				// 没有 statusPageUrl 的实例也保留，hashcode 需要覆盖 eureka 返回的所有实例，探测时再跳过
+				String statusPageUrl = node.path("statusPageUrl").asText(null);
+				Instance instance = new Instance();
+				instance.setStatusPageUrl(statusPageUrl);
+				instance.setInstanceId(node.path("instanceId").asText(StringUtils.defaultString(statusPageUrl, 
+						node.path("hostName").asText(null))));
+				instance.setApp(node.path("app").asText(application.path("name").asText(null)));
+				instance.setStatus(node.path("status").asText(null));
+				instance.setLastUpdatedTimestamp(node.path("lastUpdatedTimestamp").asLong());
+				instance.setActionType(node.path("actionType").asText(null));
+				instances.add(instance);
+			}
+		}
+		return instances;
+	}
+	
+	private List<JsonNode> elements(JsonNode node) {
+		// 只有一个元素时 eureka 可能返回对象而不是数组
+		List<JsonNode> list = new ArrayList<>();
+		if (node.isArray()) {
+			node.forEach(list::add);
+		} else if (node.isObject()) {
+			list.add(node);
+		}
+		return list;
+	}
+	
+	private String getHashcode(Collection<Instance> instances) {
+		// 与 eureka 的 reconcile hashcode 一致，例如 DOWN_1_UP_5_
+		Map<String, Integer> counts = new TreeMap<>();
+		for (Instance instance : instances) {
+			counts.merge(String.valueOf(instance.getStatus()), 1, Integer::sum);
+		}
 		
-		for (Entry<String, Object> entry : map.entrySet()) {
-			if (entry.getValue() instanceof Map) {
-				lookup(hosts, status, (Map)entry.getValue());
-			} else if (entry.getValue() instanceof List) {
-				lookup(hosts, status, (List)entry.getValue());
+		StringBuilder s = new StringBuilder();
+		for (Entry<String, Integer> entry : counts.entrySet()) {
+			s.append(entry.getKey()).append('_').append(entry.getValue()).append('_');
+		}
+		return s.toString();
+	}
+	
+	private List<String> probe(List<Instance> instances) throws InterruptedException {
+		long now = System.currentTimeMillis();
+		Map<String, Instance> probes = new HashMap<>();
+		List<Callable<Instance>> tasks = new ArrayList<>();
+		
+		// 实例没有变化时使用缓存的探测结果，没找到端点的实例过一段时间再探测
+		for (Instance instance : instances) {
+			if (instance.getStatusPageUrl() == null) {
+				continue;
+			}
+			Instance cached = this.probes.get(instance.getInstanceId());
+			if (cached != null && cached.getLastUpdatedTimestamp() == instance.getLastUpdatedTimestamp()
+					&& (cached.getMetricsUrl() != null || now - cached.getProbeTime() < PROBE_RETRY)) {
+				probes.put(instance.getInstanceId(), cached);
 			} else {
-				if (StringUtils.equals(entry.getKey(), "status")) {
-					status.delete(0, status.length());
-					status.append(entry.getValue());
-				} else if (StringUtils.equals(entry.getKey(), "statusPageUrl")) {
-					String host = entry.getValue().toString();
-					String url = findMetrics(host);
-					if (StringUtils.isNotEmpty(url)) {
-						LOG.debug("find metrics endpoint: {}, {}", host, status.toString());
-						hosts.add(url);
-					}
+				tasks.add(() -> {
+					instance.setMetricsUrl(findMetrics(instance.getStatusPageUrl()));
+					instance.setProbeTime(System.currentTimeMillis());
+					return instance;
+				});
+			}
+		}
+		
+		if (tasks.size() > 0) {
+			LOG.info("probe metrics endpoints, instances: {}", tasks.size());
+			for (Future<Instance> future : probeExecutor.invokeAll(tasks)) {
+				try {
+					Instance instance = future.get();
+					probes.put(instance.getInstanceId(), instance);
+				} catch (ExecutionException e) {
+					LOG.error("error when probe metrics endpoint", e);
 				}
 			}
 		}
-	}
-	
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private void lookup(List<String> hosts, StringBuilder status, List<Object> list) {
-		LOG.debug("{}", list);
 		
-		for (Object value : list) {
-			if (value instanceof Map) {
-				lookup(hosts, status, (Map)value);
-			} else if (value instanceof List) {
-				lookup(hosts, status, (List)value);
+		// 已经下线的实例从缓存中移除
+		this.probes = probes;
+		
+		List<String> hosts = new ArrayList<>();
+		for (Instance instance : instances) {
+			Instance probe = probes.get(instance.getInstanceId());
+			if (probe != null && StringUtils.isNotEmpty(probe.getMetricsUrl())) {
+				LOG.debug("find metrics endpoint: {}, {}", probe.getMetricsUrl(), instance.getStatus());
+				hosts.add(probe.getMetricsUrl());
 			}
 		}
+		return hosts;
 	}
-	
+
 	private String findMetrics(String url) {
 		try {
 			URL urlObject = new URL(url);
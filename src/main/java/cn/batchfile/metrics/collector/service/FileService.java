@@ -7,29 +7,24 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
 import ch.qos.logback.core.rolling.RollingFileAppender;
 import ch.qos.logback.core.rolling.TimeBasedRollingPolicy;
 import cn.batchfile.metrics.collector.config.FileConfig;
-import cn.batchfile.metrics.collector.domain.MetricData;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import cn.batchfile.metrics.collector.functions.ChangeFilter;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 
 @Service
 public class FileService {
 	private static final Logger LOG = LoggerFactory.getLogger(FileService.class);
-	private static ThreadLocal<ObjectMapper> MAPPER = new ThreadLocal<ObjectMapper>() {
-		protected ObjectMapper initialValue() {
-			return new ObjectMapper();
-		};
-	};
 	
 	private Counter writeCounter;
 	private Counter errorCounter;
+	private Counter skipCounter;
 	
 	@Autowired
 	private QueueService queueService;
@@ -40,6 +35,7 @@ public class FileService {
 	public FileService(MeterRegistry registry) {
 		writeCounter = Counter.builder("file.write.ok.count").register(registry);
 		errorCounter = Counter.builder("file.write.error.count").register(registry);
+		skipCounter = Counter.builder("file.write.skip.count").register(registry);
 	}
 	
 	@PostConstruct
@@ -51,14 +47,36 @@ public class FileService {
 		
 		Logger writer = createWriter();
 		
-		queueService.consume((MetricData metric) -> {
-			try {
-				String content = MAPPER.get().writeValueAsString(metric);
-				writer.info(content);
-				writeCounter.increment();
-			} catch (Exception e) {
-				errorCounter.increment();
-				LOG.error("error when consumer", e);
+		boolean series = "series".equals(fileConfig.getDocument());
+		ChangeFilter changes = new ChangeFilter(fileConfig.getHeartbeat());
+		queueService.consume((ScrapeBatch batch) -> {
+			// 汇总数据没有精度标记，不和原始数据写入同一个文件
+			if (batch.getResolution() != null) {
+				return;
+			}
+			StringBuilder s = new StringBuilder(256);
+			int end;
+			for (int i = 0; i < batch.size(); i = end) {
+				end = series ? batch.seriesEnd(i) : i + 1;
+				if (!changes.test(batch, i, end)) {
+					skipCounter.increment(end - i);
+					continue;
+				}
+				try {
+					s.setLength(0);
+					if (series) {
+						batch.appendSeriesJson(s, i, end);
+					} else {
+						batch.appendJson(s, i);
+					}
+					writer.info(s.toString());
+					writeCounter.increment();
+					changes.commit();
+				} catch (Exception e) {
+					changes.reset();
+					errorCounter.increment();
+					LOG.error("error when consumer", e);
+				}
 			}
 		});
 	}
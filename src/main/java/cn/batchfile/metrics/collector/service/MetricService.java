@@ -1,9 +1,8 @@
 package cn.batchfile.metrics.collector.service;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.function.BiConsumer;
 
 import javax.annotation.PostConstruct;
 
@@ -12,17 +11,18 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import cn.batchfile.metrics.collector.domain.MetricData;
 import cn.batchfile.metrics.collector.domain.RawData;
 import cn.batchfile.metrics.collector.domain.RawData.Type;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
 import cn.batchfile.metrics.collector.functions.CounterMetricsComposer;
 import cn.batchfile.metrics.collector.functions.DefaultMetricsComposer;
+import cn.batchfile.metrics.collector.functions.HistogramMetricsComposer;
 import cn.batchfile.metrics.collector.functions.SummaryMetricsComposer;
 
 @Service
 public class MetricService {
 	protected static final Logger LOG = LoggerFactory.getLogger(MetricService.class);
-	private Map<Type, Function<RawData, List<MetricData>>> COMPOSERS = new HashMap<Type, Function<RawData, List<MetricData>>>();
+	private Map<Type, BiConsumer<RawData, ScrapeBatch>> COMPOSERS = new HashMap<Type, BiConsumer<RawData, ScrapeBatch>>();
 	
 	@Autowired
 	private CacheService cacheService;
@@ -31,20 +31,17 @@ public class MetricService {
 	public void init() {
 		COMPOSERS.put(Type.COUNTER, new CounterMetricsComposer(cacheService));
 		COMPOSERS.put(Type.GAUGE, new DefaultMetricsComposer());
-		COMPOSERS.put(Type.HISTOGRAM, new DefaultMetricsComposer());
+		COMPOSERS.put(Type.HISTOGRAM, new HistogramMetricsComposer(cacheService));
 		COMPOSERS.put(Type.SUMMARY, new SummaryMetricsComposer(cacheService));
 		COMPOSERS.put(Type.UNTYPED, new DefaultMetricsComposer());
 	}
 
-	public List<MetricData> compose(RawData data) {
-		
-		Type type = data.getType();
-		Function<RawData, List<MetricData>> function = COMPOSERS.get(type);
+	// 计算结果追加到同一个批次中
+	public void compose(RawData data, ScrapeBatch batch) {
+		BiConsumer<RawData, ScrapeBatch> function = COMPOSERS.get(data.getType());
 		if (function != null) {
-			return function.apply(data);
-		} else {
-			return null;
+			function.accept(data, batch);
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,234 @@
+package cn.batchfile.metrics.collector.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cn.batchfile.metrics.collector.config.PushConfig;
+import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import cn.batchfile.metrics.collector.domain.TagSet;
+import cn.batchfile.metrics.collector.functions.DataParser;
+import cn.batchfile.metrics.collector.functions.MetricFilter;
+import cn.batchfile.metrics.collector.util.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+@Service
+public class PushService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PushService.class);
+	private static ThreadLocal<ObjectMapper> MAPPER = new ThreadLocal<ObjectMapper>() {
+		protected ObjectMapper initialValue() {
+			return new ObjectMapper();
+		};
+	};
+	private Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+	private RateLimiter globalLimiter;
+	private Counter pushCounter;
+	private Counter rawDataCounter;
+	private Counter rejectCounter;
+	private Counter inQueueCounter;
+
+	@Autowired
+	private PushConfig pushConfig;
+
+	@Autowired
+	private EndpointService endpointService;
+
+	@Autowired
+	private BeatService beatService;
+
+	@Autowired
+	private MetricService metricService;
+
+	@Autowired
+	private QueueService queueService;
+
+	public PushService(MeterRegistry registry) {
+		pushCounter = Counter.builder("push.ok.count").register(registry);
+		rawDataCounter = Counter.builder("push.raw.data.count").register(registry);
+		rejectCounter = Counter.builder("push.reject.count").register(registry);
+		inQueueCounter = Counter.builder("push.in.queue.count").register(registry);
+	}
+
+	@PostConstruct
+	public void init() {
+		globalLimiter = new RateLimiter(pushConfig.getGlobalRate(), pushConfig.getGlobalBurst());
+	}
+
+	public int push(String tenant, String host, int port, String contentType, long contentLength, InputStream in)
+			throws IOException, InterruptedException {
+		if (!pushConfig.isEnabled()) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "push disabled");
+		}
+
+		// 先检查大小和租户的令牌，超过限制的请求不读取内容
+		if (contentLength > pushConfig.getMaxBodySize()) {
+			rejectCounter.increment();
+			throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "body size limit " + pushConfig.getMaxBodySize());
+		}
+		if (pushConfig.getTenants() != null && !pushConfig.getTenants().isEmpty() && !pushConfig.getTenants().contains(tenant)) {
+			rejectCounter.increment();
+			throw new ResponseStatusException(HttpStatus.FORBIDDEN, "unknown tenant " + tenant);
+		}
+		// 推送的数据不能覆盖采集目标的计数器状态
+		if (beatService.isTarget(host, port)) {
+			rejectCounter.increment();
+			throw new ResponseStatusException(HttpStatus.CONFLICT, "target is scraped: " + host + ":" + port);
+		}
+		RateLimiter limiter = getLimiter(tenant);
+		if (!limiter.available()) {
+			rejectCounter.increment();
+			throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "rate limit of tenant " + tenant);
+		}
+		if (!globalLimiter.available()) {
+			rejectCounter.increment();
+			throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "global rate limit");
+		}
+
+		List<RawData> datas = new ArrayList<>();
+		MetricFilter filter = beatService.getFilter();
+		InputStream body = new LimitedInputStream(in, pushConfig.getMaxBodySize());
+		String mediaType = StringUtils.lowerCase(StringUtils.trim(StringUtils.substringBefore(contentType, ";")));
+		try {
+			if (StringUtils.equals(mediaType, "application/json")) {
+				parseJson(body, filter, datas);
+			} else {
+				DataParser parser = endpointService.CONTENT_PARSERS.get(StringUtils.defaultString(mediaType, EndpointService.TEXT));
+				if (parser == null) {
+					rejectCounter.increment();
+					throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "unsupported content type " + contentType);
+				}
+				// 解码失败时整个请求作废，不接受已经解出的部分数据
+				parser.parseStrictly(IOUtils.toByteArray(body), filter, datas::add);
+			}
+		} catch (BodyTooLargeException e) {
+			rejectCounter.increment();
+			throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "body size limit " + pushConfig.getMaxBodySize());
+		} catch (ResponseStatusException e) {
+			throw e;
+		} catch (JsonProcessingException | RuntimeException e) {
+			rejectCounter.increment();
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "malformed body: " + e.getMessage());
+		}
+		limiter.acquire(datas.size());
+		globalLimiter.acquire(datas.size());
+
+		// 租户作为标签，不同租户推送的相同序列各自计算增量
+		long time = System.currentTimeMillis();
+		TagSet.Builder builder = new TagSet.Builder();
+		datas.forEach(data -> {
+			data.setHost(host);
+			data.setPort(port);
+			data.setTime(time);
+			data.setTags(builder.addAll(data.getTags()).add("tenant", tenant).build());
+		});
+		rawDataCounter.increment(datas.size());
+		LOG.debug("push data, tenant: {}, host: {}, size: {}", tenant, host, datas.size());
+
+		// 与采集的数据走同样的计算和队列
+		ScrapeBatch batch = new ScrapeBatch(host, port, time, datas.size());
+		for (RawData data : datas) {
+			metricService.compose(data, batch);
+		}
+		if (batch.size() > 0) {
+			queueService.put(batch);
+		}
+		inQueueCounter.increment(batch.size());
+		pushCounter.increment();
+
+		return datas.size();
+	}
+
+	// 租户名称来自请求路径，数量有上限，满了以后先清理空闲的租户
+	private RateLimiter getLimiter(String tenant) {
+		RateLimiter limiter = limiters.get(tenant);
+		if (limiter != null) {
+			return limiter;
+		}
+		synchronized (limiters) {
+			if (limiters.size() >= pushConfig.getMaxTenants()) {
+				limiters.values().removeIf(RateLimiter::isIdle);
+			}
+			if (limiters.size() >= pushConfig.getMaxTenants() && !limiters.containsKey(tenant)) {
+				rejectCounter.increment();
+				throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "tenant limit " + pushConfig.getMaxTenants());
+			}
+			return limiters.computeIfAbsent(tenant, t -> new RateLimiter(pushConfig.getRate(), pushConfig.getBurst()));
+		}
+	}
+
+	private void parseJson(InputStream in, MetricFilter filter, List<RawData> datas) throws IOException {
+		// [{"name": "...", "type": "COUNTER", "tags": {...}, "values": [...]}, ...]
+		ObjectMapper mapper = MAPPER.get();
+		try (JsonParser parser = mapper.getFactory().createParser(in)) {
+			if (parser.nextToken() != JsonToken.START_ARRAY) {
+				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "json array expected");
+			}
+			while (parser.nextToken() == JsonToken.START_OBJECT) {
+				RawData data = mapper.readValue(parser, RawData.class);
+				if (data.getName() == null || data.getValues() == null || data.getValues().length == 0) {
+					continue;
+				}
+				data.setTags(TagSet.of(data.getTags()));
+				if (data.getType() == null) {
+					data.setType(RawData.Type.UNTYPED);
+				} else if (data.getType() == RawData.Type.SUMMARY && data.getValues().length < 2) {
+					continue;
+				} else if (data.getType() == RawData.Type.HISTOGRAM
+						&& (data.getBounds() == null || data.getValues().length != data.getBounds().length + 2)) {
+					continue;
+				}
+				if (filter.test(data.getName()) && (!filter.hasLabelRules() || filter.test(data.getName(), data.getTags()))) {
+					datas.add(data);
+				}
+			}
+		}
+	}
+
+	private static class LimitedInputStream extends ProxyInputStream {
+		private final long limit;
+		private long count;
+
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		protected void afterRead(int n) throws IOException {
+			if (n > 0) {
+				count += n;
+				if (count > limit) {
+					throw new BodyTooLargeException();
+				}
+			}
+		}
+	}
+
+	private static class BodyTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+}
@@ -1,12 +1,8 @@
 package cn.batchfile.metrics.collector.service;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.StringUtils;
@@ -15,29 +11,31 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import cn.batchfile.metrics.collector.config.MemConfig;
 import cn.batchfile.metrics.collector.config.QueueConfig;
-import cn.batchfile.metrics.collector.domain.MetricData;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import cn.batchfile.metrics.collector.util.RingBuffer;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 
 @Service
 public class QueueService {
 	private static final Logger LOG = LoggerFactory.getLogger(QueueService.class);
-	private List<BlockingQueue<MetricData>> queues = new ArrayList<>();
+	private RingBuffer<ScrapeBatch> ring;
 	private boolean run = true;
 	
 	@Autowired
 	private QueueConfig queueConfig;
 	
 	public QueueService(MeterRegistry registry) {
-		Gauge.builder("queue.size", StringUtils.EMPTY, (s) -> {
-			Iterator<BlockingQueue<MetricData>> iter = queues.iterator();
-			long i = 0;
-			while (iter.hasNext()) {
-				i += iter.next().size();
-			}
-			return i;
-		}).register(registry);
+		Gauge.builder("queue.size", StringUtils.EMPTY, (s) -> ring == null ? 0 : ring.size()).register(registry);
+	}
+	
+	@PostConstruct
+	public void init() {
+		MemConfig mem = queueConfig.getMem() == null ? new MemConfig() : queueConfig.getMem();
+		ring = new RingBuffer<>(mem.getBatches(), mem.getEvents(), ScrapeBatch::size, RingBuffer.waitStrategy(mem.getWaitStrategy()));
+		LOG.info("init queue, batches: {}, events: {}, wait strategy: {}", ring.getCapacity(), mem.getEvents(), mem.getWaitStrategy());
 	}
 	
 	@PreDestroy
@@ -45,25 +43,33 @@ public class QueueService {
 		run = false;
 	}
 	
-	public void put(MetricData metric) throws InterruptedException {
-		Iterator<BlockingQueue<MetricData>> iter = queues.iterator();
-		while (iter.hasNext()) {
-			BlockingQueue<MetricData> queue = iter.next();
-			if (!queue.offer(metric, 1, TimeUnit.SECONDS)) {
-				LOG.warn("Access queue memory limit!");
-			}
+	// 每个批次只写入一次，所有消费者共享，按最慢的消费者限制批次数量和行数
+	// 一个消费者慢下来时，等待 1 秒后丢弃的批次所有消费者都收不到
+	public void put(ScrapeBatch batch) throws InterruptedException {
+		if (!ring.publish(batch, 1, TimeUnit.SECONDS)) {
+			LOG.warn("Access queue memory limit!");
 		}
 	}
 	
 	public void consume(Consumer consumer) {
-		BlockingQueue<MetricData> queue = new LinkedBlockingQueue<>(queueConfig.getMem().getEvents());
-		queues.add(queue);
+		consume(consumer, null);
+	}
+
+	// 每次取完已经发布的数据以后在同一个线程中调用 flush，consumer 和 flush 返回之前不会读取新的数据
+	public void consume(Consumer consumer, Runnable flush) {
+		RingBuffer<ScrapeBatch>.Reader reader = ring.reader();
 		new Thread(() -> {
 			while (run) {
 				try {
-					MetricData metric = queue.poll(1, TimeUnit.SECONDS);
-					if (metric != null) {
-						consumer.consume(metric);
+					int count = reader.drain(batch -> {
+						try {
+							consumer.consume(batch);
+						} catch (Exception e) {
+							LOG.error("error when consumer data " + consumer.toString(), e);
+						}
+					}, 1, TimeUnit.SECONDS);
+					if (count > 0 && flush != null) {
+						flush.run();
 					}
 				} catch (Exception e) {
 					LOG.error("error when consumer data " + consumer.toString(), e);
@@ -0,0 +1,247 @@
+package cn.batchfile.metrics.collector.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import cn.batchfile.metrics.collector.config.RollupConfig;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import cn.batchfile.metrics.collector.domain.TagSet;
+import cn.batchfile.metrics.collector.util.Hashing;
+import cn.batchfile.metrics.collector.util.LongMap;
+import cn.batchfile.metrics.collector.util.SeriesId;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * 按固定的时间窗口汇总每个序列的 min、max、sum、count 和 last，窗口结束以后作为新的批次放入队列。
+ */
+@Service
+public class RollupService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RollupService.class);
+	private static final String[] SUFFIXES = {"_min", "_max", "_sum", "_count", "_last"};
+	// _sum 和 _count 在窗口之间可以相加，按增量输出
+	private static final boolean[] DELTAS = {false, false, true, true, false};
+	private List<Resolution> resolutions = new ArrayList<>();
+	private Counter emitCounter;
+	private Counter lateCounter;
+
+	@Autowired
+	private RollupConfig rollupConfig;
+
+	@Autowired
+	private QueueService queueService;
+
+	public RollupService(MeterRegistry registry) {
+		emitCounter = Counter.builder("rollup.emit.count").register(registry);
+		lateCounter = Counter.builder("rollup.late.count").register(registry);
+	}
+
+	@PostConstruct
+	public void init() {
+		if (!rollupConfig.isEnabled()) {
+			LOG.info("ROLLUP DISABLED");
+			return;
+		}
+
+		for (int window : rollupConfig.getWindows()) {
+			resolutions.add(new Resolution(window * 1000L));
+		}
+		LOG.info("init rollup, windows: {}", rollupConfig.getWindows());
+
+		queueService.consume(this::accept);
+		Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
+			try {
+				close(System.currentTimeMillis() - rollupConfig.getDelay() * 1000L);
+			} catch (Exception e) {
+				LOG.error("error when close rollup window", e);
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	private void accept(ScrapeBatch batch) {
+		// 汇总的结果也会进入队列，不再处理
+		if (batch.getResolution() != null) {
+			return;
+		}
+
+		for (Resolution resolution : resolutions) {
+			synchronized (resolution) {
+				for (int i = 0; i < batch.size(); i ++) {
+					if (!resolution.add(batch, i)) {
+						lateCounter.increment();
+					}
+				}
+			}
+		}
+	}
+
+	private void close(long before) throws InterruptedException {
+		for (Resolution resolution : resolutions) {
+			List<ScrapeBatch> batches;
+			synchronized (resolution) {
+				batches = resolution.close(before);
+			}
+			for (ScrapeBatch batch : batches) {
+				emitCounter.increment(batch.size());
+				queueService.put(batch);
+			}
+		}
+	}
+
+	private static String getName(long window) {
+		if (window % 3600000 == 0) {
+			return window / 3600000 + "h";
+		} else if (window % 60000 == 0) {
+			return window / 60000 + "m";
+		} else {
+			return window / 1000 + "s";
+		}
+	}
+
+	private static class Resolution {
+		private final long window;
+		private final String name;
+		private final LongMap<Series> series = new LongMap<>(1024);
+		// 已经输出的窗口，早于这个时间的数据被丢弃
+		private long closed;
+		// 窗口开始时间 -> 已经结束但还没有放入队列的数据
+		private final Map<Long, ScrapeBatch> pending = new TreeMap<>();
+
+		Resolution(long window) {
+			this.window = window;
+			this.name = getName(window);
+		}
+
+		boolean add(ScrapeBatch batch, int i) {
+			long start = Math.floorDiv(batch.getTime(), window) * window;
+			if (start < closed) {
+				return false;
+			}
+
+			long id = id(batch, i);
+			Series s;
+			while ((s = series.get(id)) != null && !s.matches(batch, i)) {
+				id = SeriesId.next(id);
+			}
+			if (s == null) {
+				s = new Series(batch, i);
+				series.put(id, s);
+			}
+
+			if (s.count > 0 && s.start != start) {
+				if (start < s.start) {
+					return false;
+				}
+				// 序列已经进入下一个窗口，先输出上一个窗口
+				emit(s);
+			}
+			s.add(start, batch.getValue(i));
+			return true;
+		}
+
+		List<ScrapeBatch> close(long before) {
+			long end = Math.floorDiv(before, window) * window;
+			if (end > closed) {
+				List<Long> removes = new ArrayList<>();
+				series.forEach((id, s) -> {
+					if (s.count > 0 && s.start < end) {
+						emit(s);
+					} else if (s.count == 0 && s.start < end - window) {
+						// 超过一个窗口没有数据的序列
+						removes.add(id);
+					}
+				});
+				for (long id : removes) {
+					series.remove(id);
+				}
+				closed = end;
+			}
+
+			List<ScrapeBatch> batches = new ArrayList<>(pending.values());
+			pending.clear();
+			return batches;
+		}
+
+		private void emit(Series s) {
+			ScrapeBatch batch = pending.computeIfAbsent(s.start, start -> {
+				ScrapeBatch b = new ScrapeBatch(null, 0, start, 1024);
+				b.setResolution(name);
+				return b;
+			});
+			double[] values = {s.min, s.max, s.sum, s.count, s.last};
+			for (int k = 0; k < SUFFIXES.length; k ++) {
+				batch.add(s.metric, SUFFIXES[k], s.output, values[k], DELTAS[k]);
+			}
+			s.count = 0;
+		}
+
+		private static long id(ScrapeBatch batch, int i) {
+			long h = SeriesId.hash(Hashing.seed(), batch.getHost(), batch.getPort(), batch.getName(i), batch.getTags(i));
+			if (batch.getSuffix(i) != null) {
+				h = Hashing.mix(Hashing.update(h, batch.getSuffix(i)));
+			}
+			return h == 0 ? 1 : h;
+		}
+	}
+
+	private static class Series {
+		private final String host;
+		private final int port;
+		private final String name;
+		private final String suffix;
+		private final Map<String, String> tags;
+		private final String metric;
+		// 输出时带上 host 和 port 标签，汇总数据的批次包含多个目标
+		private final TagSet output;
+		private long start;
+		private long count;
+		private double min;
+		private double max;
+		private double sum;
+		private double last;
+
+		Series(ScrapeBatch batch, int i) {
+			host = batch.getHost();
+			port = batch.getPort();
+			name = batch.getName(i);
+			suffix = batch.getSuffix(i);
+			tags = batch.getTags(i);
+			metric = batch.getMetric(i);
+			output = new TagSet.Builder().add("host", host).add("port", String.valueOf(port)).addAll(tags).build();
+		}
+
+		boolean matches(ScrapeBatch batch, int i) {
+			return port == batch.getPort() && Objects.equals(host, batch.getHost()) && Objects.equals(name, batch.getName(i))
+					&& Objects.equals(suffix, batch.getSuffix(i)) && Objects.equals(tags, batch.getTags(i));
+		}
+
+		void add(long start, double value) {
+			if (count == 0) {
+				this.start = start;
+				min = value;
+				max = value;
+				sum = 0;
+			} else {
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			sum += value;
+			last = value;
+			count ++;
+		}
+	}
+
+}
@@ -0,0 +1,8 @@
+package cn.batchfile.metrics.collector.service;
+
+@FunctionalInterface
+public interface ScrapeHandler {
+
+	void handle(String contentType, byte[] content, Exception error);
+
+}
@@ -0,0 +1,165 @@
+package cn.batchfile.metrics.collector.service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import cn.batchfile.metrics.collector.config.BeatConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+@Service
+public class ScrapeService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ScrapeService.class);
+	// 优先使用 protobuf，其次是 OpenMetrics 和文本格式，JSON 端点按 */* 返回
+	private static final String ACCEPT = EndpointService.PROTOBUF + ";proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,"
+			+ EndpointService.OPENMETRICS + ";version=1.0.0;q=0.6,"
+			+ EndpointService.TEXT + ";version=0.0.4;q=0.5,"
+			+ "*/*;q=0.1";
+	private CloseableHttpAsyncClient client;
+	private ExecutorService workers;
+	private Set<String> inflight = ConcurrentHashMap.newKeySet();
+	private Counter beatCounter;
+	private Counter errorCounter;
+	private Counter skipCounter;
+	private Timer beatTimer;
+
+	@Autowired
+	private BeatConfig beatConfig;
+
+	public ScrapeService(MeterRegistry registry) {
+		beatCounter = Counter.builder("beat.ok.count").register(registry);
+		errorCounter = Counter.builder("beat.error.count").register(registry);
+		skipCounter = Counter.builder("beat.skip.count").register(registry);
+		beatTimer = Timer.builder("beat.time").register(registry);
+		Gauge.builder("beat.inflight.size", StringUtils.EMPTY, (s) -> inflight.size()).register(registry);
+	}
+
+	@PostConstruct
+	public void init() throws IOReactorException {
+		int timeout = beatConfig.getTimeout() * 1000;
+
+		// IO 线程只负责网络事件，连接池限制全局和单个主机的并发请求数
+		IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(beatConfig.getIoThreads())
+				.setConnectTimeout(timeout)
+				.setSoTimeout(timeout)
+				.build();
+		PoolingNHttpClientConnectionManager manager = new PoolingNHttpClientConnectionManager(
+				new DefaultConnectingIOReactor(ioReactorConfig));
+		manager.setMaxTotal(beatConfig.getMaxConnections());
+		manager.setDefaultMaxPerRoute(beatConfig.getMaxConnectionsPerHost());
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(timeout)
+				.setSocketTimeout(timeout)
+				.setConnectionRequestTimeout(timeout)
+				.build();
+
+		client = HttpAsyncClients.custom()
+				.setConnectionManager(manager)
+				.setDefaultRequestConfig(requestConfig)
+				.build();
+		client.start();
+
+		// 解析和计算在工作线程中完成，不占用 IO 线程
+		// 等待解析的响应最多 max_connections 个，解析跟不上时拒绝，按采集失败处理
+		int threads = Runtime.getRuntime().availableProcessors();
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(beatConfig.getMaxConnections(), 1)), new ThreadPoolExecutor.AbortPolicy());
+		LOG.info("init scrape client, max connections: {}, max connections per host: {}, io threads: {}",
+				beatConfig.getMaxConnections(), beatConfig.getMaxConnectionsPerHost(), beatConfig.getIoThreads());
+	}
+
+	@PreDestroy
+	public void destroy() throws IOException {
+		if (client != null) {
+			client.close();
+		}
+		if (workers != null) {
+			workers.shutdown();
+		}
+	}
+
+	public boolean scrape(URI uri, ScrapeHandler handler) {
+		final String url = uri.toString();
+
+		// 上一轮请求还没有结束，跳过这个主机
+		if (!inflight.add(url)) {
+			LOG.debug("skip host in flight: {}", url);
+			skipCounter.increment();
+			return false;
+		}
+
+		final long begin = System.nanoTime();
+		HttpGet request = new HttpGet(uri);
+		request.setHeader(HttpHeaders.ACCEPT, ACCEPT);
+		client.execute(request, new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(HttpResponse response) {
+				beatTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+				try {
+					int status = response.getStatusLine().getStatusCode();
+					if (status < 200 || status >= 300) {
+						EntityUtils.consumeQuietly(response.getEntity());
+						throw new IOException(status + ", " + response.getStatusLine().getReasonPhrase());
+					}
+
+					byte[] content = response.getEntity() == null ? new byte[0] : EntityUtils.toByteArray(response.getEntity());
+					Header contentType = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+					inflight.remove(url);
+
+					workers.execute(() -> handler.handle(contentType == null ? null : contentType.getValue(), content, null));
+					beatCounter.increment();
+				} catch (Exception e) {
+					failed(e);
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				inflight.remove(url);
+				errorCounter.increment();
+				LOG.debug("error when get metrics, host: " + url, e);
+				handler.handle(null, null, e);
+			}
+
+			@Override
+			public void cancelled() {
+				failed(new IOException("cancelled"));
+			}
+		});
+		return true;
+	}
+
+}
@@ -0,0 +1,154 @@
+package cn.batchfile.metrics.collector.service;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import cn.batchfile.metrics.collector.config.ShardConfig;
+import cn.batchfile.metrics.collector.domain.Instance;
+import cn.batchfile.metrics.collector.util.HashRing;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+@Service
+public class ShardService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ShardService.class);
+	private String self;
+	private int selfPort;
+	private boolean missing;
+	private volatile HashRing ring;
+
+	@Autowired
+	private ShardConfig shardConfig;
+
+	@Autowired
+	private EndpointService endpointService;
+
+	@Value("${server.port:8080}")
+	private int port;
+
+	public ShardService(MeterRegistry registry) {
+		Gauge.builder("shard.peers.size", StringUtils.EMPTY, (s) -> ring == null ? 0 : ring.getNodes().size()).register(registry);
+	}
+
+	@PostConstruct
+	public void init() throws UnknownHostException {
+		self = StringUtils.isNotEmpty(shardConfig.getSelf()) ? shardConfig.getSelf()
+				: InetAddress.getLocalHost().getHostAddress() + ":" + port;
+		selfPort = NumberUtils.toInt(StringUtils.substringAfterLast(self, ":"), port);
+		if (shardConfig.isEnabled()) {
+			LOG.info("sharding enabled, self: {}", self);
+			refresh();
+			Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
+				try {
+					refresh();
+				} catch (Exception e) {
+					LOG.error("error when refresh shard peers", e);
+				}
+			}, 10, 10, TimeUnit.SECONDS);
+		}
+	}
+
+	public boolean isEnabled() {
+		return shardConfig.isEnabled();
+	}
+
+	public String getSelf() {
+		return self;
+	}
+
+	public List<String> getPeers() {
+		return ring == null ? null : ring.getNodes();
+	}
+
+	// 重新计算节点列表，节点有变化时重建哈希环
+	private void refresh() {
+		Set<String> peers = new TreeSet<>();
+		peers.add(self);
+		// 所有节点共用的静态列表中也有本机，同样统一成 self，集合去掉重复的节点
+		if (shardConfig.getPeers() != null) {
+			for (String peer : shardConfig.getPeers()) {
+				peer = StringUtils.trimToNull(peer);
+				if (peer != null && !isSelf(peer)) {
+					peers.add(peer);
+				}
+			}
+		}
+		if (StringUtils.isNotEmpty(shardConfig.getApp())) {
+			boolean found = false;
+			int discovered = 0;
+			for (Instance instance : endpointService.getInstances()) {
+				if (StringUtils.equalsIgnoreCase(instance.getApp(), shardConfig.getApp())
+						&& StringUtils.equalsIgnoreCase(instance.getStatus(), "UP")) {
+					String peer = getPeer(instance.getStatusPageUrl());
+					if (peer != null) {
+						discovered ++;
+						// 注册中心里的地址通常是主机名，指向本机的地址统一成 self，避免同一个实例在环上出现两次
+						if (isSelf(peer)) {
+							found = true;
+						} else {
+							peers.add(peer);
+						}
+					}
+				}
+			}
+			if (discovered > 0 && !found && !missing) {
+				LOG.warn("self {} is not in the discovered peers of {}, set shard.self to the address registered in eureka", 
+						self, shardConfig.getApp());
+			}
+			missing = discovered > 0 && !found;
+		}
+
+		if (ring == null || !new TreeSet<>(ring.getNodes()).equals(peers)) {
+			LOG.info("rebuild shard ring, peers: {}", peers);
+			ring = new HashRing(peers, shardConfig.getVirtualNodes());
+		}
+	}
+
+	// 目标由哈希环上顺时针方向的第一个节点负责
+	public boolean owns(String target) {
+		return !shardConfig.isEnabled() || ring == null || StringUtils.equals(ring.get(target), self);
+	}
+
+	private boolean isSelf(String peer) {
+		if (StringUtils.equalsIgnoreCase(peer, self)) {
+			return true;
+		}
+		if (NumberUtils.toInt(StringUtils.substringAfterLast(peer, ":"), -1) != selfPort) {
+			return false;
+		}
+		try {
+			InetAddress address = InetAddress.getByName(StringUtils.substringBeforeLast(peer, ":"));
+			return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private String getPeer(String url) {
+		try {
+			URL u = new URL(url);
+			return u.getHost() + ":" + (u.getPort() < 0 ? u.getDefaultPort() : u.getPort());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package cn.batchfile.metrics.collector.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+// 一致性哈希环，每个节点对应多个虚拟节点，节点增减时只有少量的 key 迁移
+public class HashRing {
+
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+	private final List<String> nodes;
+
+	public HashRing(Collection<String> nodes, int virtualNodes) {
+		this.nodes = new ArrayList<>(nodes);
+		for (String node : nodes) {
+			for (int i = 0; i < virtualNodes; i ++) {
+				ring.put(Hashing.hash(node + "#" + i), node);
+			}
+		}
+	}
+
+	public String get(String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Entry<Long, String> entry = ring.ceilingEntry(Hashing.hash(key));
+		return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+	}
+
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+}
@@ -0,0 +1,46 @@
+package cn.batchfile.metrics.collector.util;
+
+public final class Hashing {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private Hashing() {
+	}
+
+	public static long hash(CharSequence s) {
+		return mix(update(FNV_OFFSET, s));
+	}
+
+	public static long update(long h, CharSequence s) {
+		for (int i = 0; i < s.length(); i ++) {
+			char c = s.charAt(i);
+			h = (h ^ (c & 0xff)) * FNV_PRIME;
+			h = (h ^ (c >>> 8)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	public static long update(long h, long v) {
+		for (int i = 0; i < 8; i ++) {
+			h = (h ^ (v & 0xff)) * FNV_PRIME;
+			v >>>= 8;
+		}
+		return h;
+	}
+
+	public static long seed() {
+		return FNV_OFFSET;
+	}
+
+	// murmur3 fmix64，让低位也分布均匀
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,50 @@
+package cn.batchfile.metrics.collector.util;
+
+// 输出 JSON 字符串内容时转义引号、反斜杠和控制字符，大多数名称和标签不需要转义，直接追加
+public final class Json {
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private Json() {
+	}
+
+	public static void quote(StringBuilder s, String value) {
+		int start = 0;
+		for (int i = 0; i < value.length(); i ++) {
+			char c = value.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\') {
+				continue;
+			}
+
+			s.append(value, start, i);
+			start = i + 1;
+			switch (c) {
+			case '"':
+				s.append("\\\"");
+				break;
+			case '\\':
+				s.append("\\\\");
+				break;
+			case '\n':
+				s.append("\\n");
+				break;
+			case '\r':
+				s.append("\\r");
+				break;
+			case '\t':
+				s.append("\\t");
+				break;
+			case '\b':
+				s.append("\\b");
+				break;
+			case '\f':
+				s.append("\\f");
+				break;
+			default:
+				s.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+			}
+		}
+		s.append(value, start, value.length());
+	}
+
+}
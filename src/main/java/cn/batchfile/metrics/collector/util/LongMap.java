@@ -0,0 +1,135 @@
+package cn.batchfile.metrics.collector.util;
+
+import java.util.Arrays;
+
+/**
+ * 以 long 为键的开放寻址哈希表，键不装箱，也没有 Entry 对象。
+ * 键 0 保留为空槽，不是线程安全的。
+ */
+public class LongMap<V> {
+
+	@FunctionalInterface
+	public interface Visitor<V> {
+		void visit(long key, V value);
+	}
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	private int threshold;
+
+	public LongMap(int capacity) {
+		allocate(Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		for (int i = slot(key); keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return (V)values[i];
+			}
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (key == 0) {
+			throw new IllegalArgumentException("key must not be 0");
+		}
+
+		int i = slot(key);
+		for (; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V)values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++ size > threshold) {
+			resize();
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = slot(key);
+		while (keys[i] != key) {
+			if (keys[i] == 0) {
+				return null;
+			}
+			i = (i + 1) & mask;
+		}
+		V old = (V)values[i];
+
+		// 后面同一探测链上的元素前移，不留删除标记
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (keys[j] == 0) {
+				break;
+			}
+			int k = slot(keys[j]);
+			if (i <= j ? (i >= k || k > j) : (i >= k && k > j)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		keys[i] = 0;
+		values[i] = null;
+		size --;
+		return old;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEach(Visitor<V> visitor) {
+		for (int i = 0; i < keys.length; i ++) {
+			if (keys[i] != 0) {
+				visitor.visit(keys[i], (V)values[i]);
+			}
+		}
+	}
+
+	public void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private int slot(long key) {
+		return (int)(key ^ (key >>> 32)) & mask;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		threshold = capacity / 4 * 3;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(keys.length << 1);
+		for (int i = 0; i < oldKeys.length; i ++) {
+			if (oldKeys[i] != 0) {
+				int j = slot(oldKeys[i]);
+				while (keys[j] != 0) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package cn.batchfile.metrics.collector.util;
+
+// 令牌桶，rate 为每秒补充的令牌数，burst 为桶的容量。
+// 请求的大小事先不知道，先检查有没有令牌，处理以后再扣除，不足的部分从后面的时间里扣
+public class RateLimiter {
+
+	private final double rate;
+	private final double burst;
+	private double tokens;
+	private long last;
+
+	public RateLimiter(double rate, double burst) {
+		this.rate = rate;
+		this.burst = Math.max(burst, rate);
+		this.tokens = this.burst;
+		this.last = System.nanoTime();
+	}
+
+	public synchronized boolean available() {
+		refill();
+		return tokens > 0;
+	}
+
+	public synchronized void acquire(int permits) {
+		refill();
+		tokens -= permits;
+	}
+
+	// 令牌已经补满，一段时间没有请求
+	public synchronized boolean isIdle() {
+		refill();
+		return tokens >= burst;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - last) / 1e9 * rate);
+		last = now;
+	}
+
+}
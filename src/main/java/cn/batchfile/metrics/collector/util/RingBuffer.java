@@ -0,0 +1,275 @@
+package cn.batchfile.metrics.collector.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * 预先分配的环形队列，参考 Disruptor：多个生产者通过 CAS 申请序号，每条数据只写一次，
+ * 每个读取者有自己的序号，读取所有已经发布的数据以后才更新一次序号。
+ * 最慢的读取者决定队列是否已满，除了槽位数量，还按 weigher 计算的权重（例如批次中的行数）限制队列长度。
+ * 所有读取者都取走的槽位会被清空，队列不会继续引用已经处理完的数据。
+ */
+public class RingBuffer<T> {
+
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private final Object[] entries;
+	private final AtomicLongArray published;
+	private final int mask;
+	private final long limit;
+	private final ToIntFunction<T> weigher;
+	private final WaitStrategy waitStrategy;
+	private final AtomicLong cursor = new AtomicLong(-1);
+	private final AtomicLong weight = new AtomicLong();
+	private final List<Reader> readers = new CopyOnWriteArrayList<>();
+	private final ReentrantLock releaseLock = new ReentrantLock();
+	// 已经清空的最大序号，生产者只能覆盖这个序号之前的槽位
+	private volatile long released = -1;
+	// 最慢的读取者的权重，只在队列看起来已满时重新计算
+	private volatile long gatingWeight = 0;
+
+	public RingBuffer(int size, long limit, ToIntFunction<T> weigher, WaitStrategy waitStrategy) {
+		int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+		this.entries = new Object[capacity];
+		this.published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i ++) {
+			published.set(i, -1);
+		}
+		this.mask = capacity - 1;
+		this.limit = limit;
+		this.weigher = weigher;
+		this.waitStrategy = waitStrategy;
+	}
+
+	public int getCapacity() {
+		return entries.length;
+	}
+
+	// 还没有被所有读取者取走的权重
+	public long size() {
+		return weight.get() - minWeight();
+	}
+
+	// 队列已满时最多等待 timeout，仍然没有空间返回 false
+	public boolean publish(T item, long timeout, TimeUnit unit) throws InterruptedException {
+		// 没有读取者时不保存，之后加入的读取者也不会读到
+		if (readers.isEmpty()) {
+			return true;
+		}
+
+		int w = weigher.applyAsInt(item);
+		long deadline = 0;
+		long next;
+		while (true) {
+			long current = cursor.get();
+			next = current + 1;
+			if (isFull(next, w)) {
+				long now = System.nanoTime();
+				if (deadline == 0) {
+					deadline = now + unit.toNanos(timeout);
+				} else if (now - deadline >= 0) {
+					return false;
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				LockSupport.parkNanos(PARK_NANOS);
+			} else if (cursor.compareAndSet(current, next)) {
+				break;
+			}
+		}
+
+		int index = (int)next & mask;
+		entries[index] = item;
+		weight.addAndGet(w);
+		published.set(index, next);
+		waitStrategy.signal();
+		return true;
+	}
+
+	// 新的读取者从当前位置开始，之前发布的数据不会读到
+	public Reader reader() {
+		Reader reader = new Reader(cursor.get(), weight.get());
+		readers.add(reader);
+		return reader;
+	}
+
+	private boolean isFull(long next, int w) {
+		if (next - entries.length > released && next - entries.length > release()) {
+			return true;
+		}
+
+		if (limit > 0) {
+			long size = weight.get() - gatingWeight;
+			if (size > 0 && size + w > limit) {
+				gatingWeight = minWeight();
+				size = weight.get() - gatingWeight;
+				return size > 0 && size + w > limit;
+			}
+		}
+		return false;
+	}
+
+	// 清空所有读取者都已经取走的槽位，同一时间只有一个线程清空，其他线程直接返回
+	private long release() {
+		if (releaseLock.tryLock()) {
+			try {
+				long min = minSequence(cursor.get());
+				for (long s = released + 1; s <= min; s ++) {
+					entries[(int)s & mask] = null;
+				}
+				if (min > released) {
+					released = min;
+				}
+			} finally {
+				releaseLock.unlock();
+			}
+		}
+		return released;
+	}
+
+	private long minSequence(long current) {
+		long min = current;
+		for (Reader reader : readers) {
+			min = Math.min(min, reader.sequence);
+		}
+		return min;
+	}
+
+	private long minWeight() {
+		long min = weight.get();
+		for (Reader reader : readers) {
+			min = Math.min(min, reader.weight);
+		}
+		return min;
+	}
+
+	// 从 next 开始连续发布的最大序号，没有数据时返回 next - 1
+	private long available(long next) {
+		long current = cursor.get();
+		for (long s = next; s <= current; s ++) {
+			if (published.get((int)s & mask) != s) {
+				return s - 1;
+			}
+		}
+		return Math.max(current, next - 1);
+	}
+
+	public class Reader {
+		private volatile long sequence;
+		private volatile long weight;
+
+		private Reader(long sequence, long weight) {
+			this.sequence = sequence;
+			this.weight = weight;
+		}
+
+		// 取出所有已经发布的数据交给 consumer，consumer 不能抛出异常，没有数据时最多等待 timeout
+		@SuppressWarnings("unchecked")
+		public int drain(Consumer<T> consumer, long timeout, TimeUnit unit) throws InterruptedException {
+			long next = sequence + 1;
+			long available = available(next);
+			if (available < next) {
+				long deadline = System.nanoTime() + unit.toNanos(timeout);
+				BooleanSupplier ready = () -> available(next) >= next;
+				int idle = 0;
+				while ((available = available(next)) < next) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return 0;
+					}
+					waitStrategy.await(idle ++, remaining, ready);
+				}
+			}
+
+			long w = 0;
+			for (long s = next; s <= available; s ++) {
+				T item = (T)entries[(int)s & mask];
+				w += weigher.applyAsInt(item);
+				consumer.accept(item);
+			}
+			weight += w;
+			sequence = available;
+			release();
+			return (int)(available - next + 1);
+		}
+	}
+
+	public static WaitStrategy waitStrategy(String name) {
+		switch (name == null ? "blocking" : name) {
+		case "blocking":
+			return new BlockingWaitStrategy();
+		case "sleeping":
+			return (idle, nanos, ready) -> {
+				if (idle >= 200) {
+					LockSupport.parkNanos(Math.min(nanos, 100000));
+				} else if (idle >= 100) {
+					Thread.yield();
+				}
+			};
+		case "yielding":
+			return (idle, nanos, ready) -> {
+				if (idle >= 100) {
+					Thread.yield();
+				}
+			};
+		case "busy_spin":
+			return (idle, nanos, ready) -> {};
+		default:
+			throw new IllegalArgumentException("unsupported wait strategy: " + name);
+		}
+	}
+
+	/**
+	 * 读取者没有数据时的等待方式，每次调用等待一小段时间，由调用者重新检查。
+	 */
+	public interface WaitStrategy {
+
+		void await(int idle, long nanos, BooleanSupplier ready) throws InterruptedException;
+
+		default void signal() {
+		}
+	}
+
+	// 只有读取者在等待时，生产者才需要加锁唤醒
+	private static class BlockingWaitStrategy implements WaitStrategy {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition condition = lock.newCondition();
+		private volatile boolean signalNeeded;
+
+		@Override
+		public void await(int idle, long nanos, BooleanSupplier ready) throws InterruptedException {
+			lock.lock();
+			try {
+				signalNeeded = true;
+				if (!ready.getAsBoolean()) {
+					condition.awaitNanos(nanos);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void signal() {
+			if (signalNeeded) {
+				lock.lock();
+				try {
+					signalNeeded = false;
+					condition.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+}
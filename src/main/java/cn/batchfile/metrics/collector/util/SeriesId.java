@@ -0,0 +1,78 @@
+package cn.batchfile.metrics.collector.util;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.domain.TagSet;
+
+/**
+ * 时间序列的 64 位标识，由目标、名称和标签计算，与标签顺序无关。
+ * 另外用不同的种子计算一个校验值，两个序列 id 相同但校验值不同时认为是冲突。
+ */
+public final class SeriesId {
+
+	public static final long CHECK_SEED = 0x9e3779b97f4a7c15L;
+
+	private SeriesId() {
+	}
+
+	// 每个 RawData 只计算一次
+	public static long of(RawData data) {
+		if (data.getSeriesId() == 0) {
+			data.setSeriesId(hash(Hashing.seed(), data.getHost(), data.getPort(), data.getName(), data.getTags()));
+			data.setSeriesCheck(hash(CHECK_SEED, data.getHost(), data.getPort(), data.getName(), data.getTags()));
+		}
+		return data.getSeriesId();
+	}
+
+	public static long check(RawData data) {
+		of(data);
+		return data.getSeriesCheck();
+	}
+
+	// 冲突时按固定的顺序探测下一个 id
+	public static long next(long id) {
+		long next = Hashing.mix(id + CHECK_SEED);
+		return next == 0 ? 1 : next;
+	}
+
+	// 同一个序列派生的其他 id，例如 histogram 的 bucket
+	public static long derive(long id, int k) {
+		long derived = Hashing.mix(id ^ (k * 0xc2b2ae3d27d4eb4fL));
+		return derived == 0 ? 1 : derived;
+	}
+
+	public static long hash(long seed, String host, int port, String name, Map<String, String> tags) {
+		long h = field(seed, host == null ? "" : host);
+		h = Hashing.update(h, port);
+		h = field(h, name == null ? "" : name);
+
+		h = Hashing.mix(Hashing.update(h, labelHash(seed, tags)));
+		return h == 0 ? 1 : h;
+	}
+
+	// TagSet 使用缓存的值
+	public static long labelHash(long seed, Map<String, String> tags) {
+		return tags instanceof TagSet ? ((TagSet)tags).getLabelHash(seed) : labels(seed, tags);
+	}
+
+	// 每个标签单独计算后相加，相当于先排序再计算
+	public static long labels(long seed, Map<String, String> tags) {
+		long labels = 0;
+		if (tags != null) {
+			for (Entry<String, String> tag : tags.entrySet()) {
+				long t = field(seed, tag.getKey());
+				t = field(t, tag.getValue() == null ? "" : tag.getValue());
+				labels += Hashing.mix(t);
+			}
+		}
+		return labels;
+	}
+
+	// 每个字符串后面加上长度，避免 {ab="c"} 和 {a="bc"} 这样的拼接得到相同的字节序列
+	private static long field(long h, String s) {
+		return Hashing.update(Hashing.update(h, s), s.length());
+	}
+
+}
@@ -0,0 +1,314 @@
+package cn.batchfile.metrics.collector.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 序列状态的持久化，由快照和预写日志组成，每条记录与 SeriesStore 的槽相同：
+ * <ul>
+ * <li>snapshot: [magic][version][count] 以及按 id 无符号排序的记录，最后是 CRC32</li>
+ * <li>wal: 若干批次，每个批次是 [magic][count][CRC32] 以及最多 BATCH_ENTRIES 条记录</li>
+ * </ul>
+ * 快照先写入临时文件，再原子替换，替换后清空预写日志。
+ */
+public class SeriesLog implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeriesLog.class);
+	public static final int ENTRY = 40;
+	public static final int HEADER = 16;
+	private static final int SNAPSHOT_MAGIC = 0x4d435353;
+	private static final int BATCH_MAGIC = 0x4d435742;
+	private static final int VERSION = 1;
+	private static final int BATCH_HEADER = 12;
+	// 每个批次的记录数量上限，回放日志时只需要一个批次大小的缓冲区
+	private static final int BATCH_ENTRIES = 4096;
+	// 快照每段映射的记录数量，一段不超过 2G
+	private static final int SEGMENT_ENTRIES = 1 << 24;
+
+	private final File snapshotFile;
+	private final File walFile;
+	private FileChannel wal;
+
+	public SeriesLog(File dir) throws IOException {
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("can not create directory: " + dir);
+		}
+		snapshotFile = new File(dir, "snapshot.bin");
+		walFile = new File(dir, "wal.bin");
+	}
+
+	public static void write(ByteBuffer out, long id, long check, long time, double v0, double v1) {
+		out.putLong(id).putLong(check).putLong(time).putDouble(v0).putDouble(v1);
+	}
+
+	public static void read(ByteBuffer in, SeriesStore.Visitor visitor) {
+		visitor.visit(in.getLong(), in.getLong(), in.getLong(), in.getDouble(), in.getDouble());
+	}
+
+	// 逐个批次读取预写日志，末尾不完整的批次被截掉，然后打开日志用于追加
+	public void replayWal(SeriesStore.Visitor visitor) throws IOException {
+		wal = FileChannel.open(walFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = wal.size();
+		long valid = readWal(wal, size, visitor);
+		if (valid < size) {
+			LOG.warn("truncate wal file: {}, from {} to {}", walFile, size, valid);
+			wal.truncate(valid);
+		}
+		wal.position(valid);
+	}
+
+	// 以内存映射的方式打开快照，只检查文件头，没有快照或者文件头不正确时返回 null
+	public Snapshot openSnapshot() throws IOException {
+		if (!snapshotFile.exists()) {
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			if (size < HEADER + 8) {
+				LOG.error("invalid snapshot file: {}", snapshotFile);
+				return null;
+			}
+			readFully(channel, header, 0);
+			long count = header.getInt() == SNAPSHOT_MAGIC && header.getInt() == VERSION ? header.getLong() : -1;
+			if (count < 0 || size != HEADER + count * ENTRY + 8) {
+				LOG.error("invalid snapshot file: {}", snapshotFile);
+				return null;
+			}
+
+			// 每段映射 SEGMENT_ENTRIES 条记录，超过 2G 的快照映射为多段
+			ByteBuffer[] segments = new ByteBuffer[(int)((count + SEGMENT_ENTRIES - 1) / SEGMENT_ENTRIES)];
+			for (int i = 0; i < segments.length; i ++) {
+				long first = (long)i * SEGMENT_ENTRIES;
+				long length = Math.min(SEGMENT_ENTRIES, count - first) * ENTRY;
+				segments[i] = channel.map(MapMode.READ_ONLY, HEADER + first * ENTRY, length);
+			}
+			ByteBuffer trailer = ByteBuffer.allocate(8);
+			readFully(channel, trailer, HEADER + count * ENTRY);
+			return new Snapshot(segments, count, trailer.getLong());
+		}
+	}
+
+	// 追加记录，entries 从 0 到 position 是记录，按 BATCH_ENTRIES 分成多个批次，调用 force 以后才保证写入磁盘
+	public void append(ByteBuffer entries) throws IOException {
+		entries.flip();
+		ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER);
+		CRC32 crc = new CRC32();
+		while (entries.hasRemaining()) {
+			ByteBuffer batch = entries.slice();
+			batch.limit(Math.min(batch.remaining(), BATCH_ENTRIES * ENTRY));
+			entries.position(entries.position() + batch.limit());
+
+			crc.reset();
+			crc.update(batch.duplicate());
+			header.clear();
+			header.putInt(BATCH_MAGIC).putInt(batch.limit() / ENTRY).putInt((int)crc.getValue()).flip();
+			while (header.hasRemaining() || batch.hasRemaining()) {
+				wal.write(new ByteBuffer[] {header, batch});
+			}
+		}
+		entries.clear();
+	}
+
+	// 多个批次追加完以后只同步一次
+	public void force() throws IOException {
+		if (wal != null) {
+			wal.force(false);
+		}
+	}
+
+	public long getWalSize() throws IOException {
+		return wal == null ? 0 : wal.size();
+	}
+
+	public SnapshotWriter snapshot() throws IOException {
+		return new SnapshotWriter();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (wal != null) {
+			wal.close();
+		}
+	}
+
+	// 返回最后一个完整批次的结束位置
+	private static long readWal(FileChannel channel, long size, SeriesStore.Visitor visitor) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER);
+		ByteBuffer entries = ByteBuffer.allocate(BATCH_ENTRIES * ENTRY);
+		CRC32 crc = new CRC32();
+		long position = 0;
+		while (size - position >= BATCH_HEADER) {
+			header.clear();
+			readFully(channel, header, position);
+			int magic = header.getInt();
+			int count = header.getInt();
+			int checksum = header.getInt();
+			if (magic != BATCH_MAGIC || count < 0 || count > BATCH_ENTRIES || size - position - BATCH_HEADER < (long)count * ENTRY) {
+				return position;
+			}
+
+			entries.clear().limit(count * ENTRY);
+			readFully(channel, entries, position + BATCH_HEADER);
+			crc.reset();
+			crc.update(entries.duplicate());
+			if ((int)crc.getValue() != checksum) {
+				return position;
+			}
+			while (entries.hasRemaining()) {
+				read(entries, visitor);
+			}
+			position += BATCH_HEADER + count * ENTRY;
+		}
+		return position;
+	}
+
+	// 从 position 开始读满 buffer，然后 flip
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			position += n;
+		}
+		buffer.flip();
+	}
+
+	// 内存映射的快照，记录按 id 的无符号顺序排列，可以二分查找
+	public static class Snapshot {
+		private final ByteBuffer[] segments;
+		private final long count;
+		private final long checksum;
+
+		Snapshot(ByteBuffer[] segments, long count, long checksum) {
+			this.segments = segments;
+			this.count = count;
+			this.checksum = checksum;
+		}
+
+		public long size() {
+			return count;
+		}
+
+		public boolean verify() {
+			CRC32 crc = new CRC32();
+			for (ByteBuffer segment : segments) {
+				crc.update(segment.duplicate());
+			}
+			return crc.getValue() == checksum;
+		}
+
+		// 返回记录的位置，不存在时返回 -1
+		public long find(long id) {
+			long low = 0;
+			long high = count - 1;
+			while (low <= high) {
+				long middle = (low + high) >>> 1;
+				int c = Long.compareUnsigned(id(middle), id);
+				if (c < 0) {
+					low = middle + 1;
+				} else if (c > 0) {
+					high = middle - 1;
+				} else {
+					return middle;
+				}
+			}
+			return -1;
+		}
+
+		public long id(long index) {
+			return segment(index).getLong(offset(index));
+		}
+
+		public long check(long index) {
+			return segment(index).getLong(offset(index) + 8);
+		}
+
+		public long time(long index) {
+			return segment(index).getLong(offset(index) + 16);
+		}
+
+		public double value(long index, int i) {
+			return segment(index).getDouble(offset(index) + 24 + i * 8);
+		}
+
+		public void forEach(SeriesStore.Visitor visitor) {
+			for (ByteBuffer segment : segments) {
+				ByteBuffer entries = segment.duplicate();
+				while (entries.hasRemaining()) {
+					read(entries, visitor);
+				}
+			}
+		}
+
+		private ByteBuffer segment(long index) {
+			return segments[(int)(index / SEGMENT_ENTRIES)];
+		}
+
+		private static int offset(long index) {
+			return (int)(index % SEGMENT_ENTRIES) * ENTRY;
+		}
+	}
+
+	public class SnapshotWriter {
+		private final File tmp = new File(snapshotFile.getPath() + ".tmp");
+		private final FileChannel channel;
+		private final CRC32 crc = new CRC32();
+		private long count;
+
+		SnapshotWriter() throws IOException {
+			channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			channel.position(HEADER);
+		}
+
+		// 记录必须按 id 的无符号顺序写入
+		public void write(ByteBuffer entries) throws IOException {
+			entries.flip();
+			count += entries.remaining() / ENTRY;
+			crc.update(entries.duplicate());
+			while (entries.hasRemaining()) {
+				channel.write(entries);
+			}
+			entries.clear();
+		}
+
+		public void commit() throws IOException {
+			try {
+				ByteBuffer trailer = ByteBuffer.allocate(8);
+				trailer.putLong(crc.getValue()).flip();
+				while (trailer.hasRemaining()) {
+					channel.write(trailer);
+				}
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				header.putInt(SNAPSHOT_MAGIC).putInt(VERSION).putLong(count).flip();
+				while (header.hasRemaining()) {
+					channel.write(header, header.position());
+				}
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+
+			Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			wal.truncate(0);
+			wal.position(0);
+			wal.force(true);
+		}
+	}
+
+}
@@ -0,0 +1,309 @@
+package cn.batchfile.metrics.collector.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 计数器的上一次取值，每个序列一个固定长度的槽 (id, check, time, v0, v1, prev, next)，共 48 字节。
+ * 数据保存在 ByteBuffer 中，可以放在堆外，开放寻址，键 0 表示空槽，不是线程安全的。
+ * 所有槽按最后写入的顺序串成双向链表，过期时只需要从表头开始删除。
+ */
+public class SeriesStore {
+
+	@FunctionalInterface
+	public interface Visitor {
+		void visit(long id, long check, long time, double v0, double v1);
+	}
+
+	public static final int VALUES = 2;
+	private static final int SLOT = 48;
+	private static final int CHECK = 8;
+	private static final int TIME = 16;
+	private static final int VALUE = 24;
+	private static final int PREV = 40;
+	private static final int NEXT = 44;
+	private static final int NONE = -1;
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE / SLOT;
+
+	private final boolean direct;
+	private ByteBuffer buffer;
+	private int capacity;
+	private int mask;
+	private int size;
+	private int threshold;
+	private int head = NONE;
+	private int tail = NONE;
+	// 上次持久化以后修改过的 id，可能有重复
+	private long[] dirty = new long[1024];
+	private int dirtyCount;
+
+	public SeriesStore(int capacity, boolean direct) {
+		this.direct = direct;
+		allocate(Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int dirtyCount() {
+		return dirtyCount;
+	}
+
+	public long bytes() {
+		return (long)capacity * SLOT;
+	}
+
+	// 返回槽的位置，不存在时返回 -1
+	public int indexOf(long id) {
+		for (int i = slot(id); ; i = (i + 1) & mask) {
+			long key = buffer.getLong(i * SLOT);
+			if (key == id) {
+				return i;
+			} else if (key == 0) {
+				return -1;
+			}
+		}
+	}
+
+	public long check(int index) {
+		return buffer.getLong(index * SLOT + CHECK);
+	}
+
+	public long time(int index) {
+		return buffer.getLong(index * SLOT + TIME);
+	}
+
+	public double value(int index, int i) {
+		return buffer.getDouble(index * SLOT + VALUE + i * 8);
+	}
+
+	// 写入一个序列并移到链表末尾，多于两个的值被忽略
+	public void put(long id, long check, long time, double[] values) {
+		if (id == 0) {
+			throw new IllegalArgumentException("id must not be 0");
+		}
+
+		int index = indexOf(id);
+		if (index < 0) {
+			if (size >= threshold) {
+				resize();
+			}
+			index = slot(id);
+			while (buffer.getLong(index * SLOT) != 0) {
+				index = (index + 1) & mask;
+			}
+			buffer.putLong(index * SLOT, id);
+			append(index);
+			size ++;
+		} else if (index != tail) {
+			unlink(index);
+			append(index);
+		}
+
+		int offset = index * SLOT;
+		buffer.putLong(offset + CHECK, check);
+		buffer.putLong(offset + TIME, time);
+		for (int i = 0; i < VALUES; i ++) {
+			buffer.putDouble(offset + VALUE + i * 8, values != null && i < values.length ? values[i] : 0);
+		}
+
+		if (dirtyCount == dirty.length) {
+			dirty = Arrays.copyOf(dirty, dirty.length << 1);
+		}
+		dirty[dirtyCount ++] = id;
+	}
+
+	// 恢复数据时使用，只保留时间较新的值，不标记为修改
+	public void putIfNewer(long id, long check, long time, double v0, double v1) {
+		int index = indexOf(id);
+		if (index >= 0 && time(index) > time) {
+			return;
+		}
+		int count = dirtyCount;
+		put(id, check, time, new double[] {v0, v1});
+		dirtyCount = count;
+	}
+
+	// 按时间重新串连链表，putIfNewer 恢复的旧数据排在链表末尾时，过期需要按时间顺序
+	public void sortByTime() {
+		Integer[] indexes = new Integer[size];
+		int n = 0;
+		for (int i = head; i != NONE; i = next(i)) {
+			indexes[n ++] = i;
+		}
+		Arrays.sort(indexes, 0, n, (x, y) -> Long.compare(time(x), time(y)));
+		head = NONE;
+		tail = NONE;
+		for (int i = 0; i < n; i ++) {
+			append(indexes[i]);
+		}
+	}
+
+	public boolean remove(long id) {
+		int i = indexOf(id);
+		if (i < 0) {
+			return false;
+		}
+		unlink(i);
+
+		// 后面同一探测链上的槽前移，不留删除标记
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			long key = buffer.getLong(j * SLOT);
+			if (key == 0) {
+				break;
+			}
+			int k = slot(key);
+			if (i <= j ? (i >= k || k > j) : (i >= k && k > j)) {
+				move(j, i);
+				i = j;
+			}
+		}
+		for (int offset = i * SLOT; offset < (i + 1) * SLOT; offset += 8) {
+			buffer.putLong(offset, 0);
+		}
+		size --;
+		return true;
+	}
+
+	// 从表头开始删除早于 before 的序列，遇到没有过期的序列就停止
+	public int expire(long before) {
+		int count = 0;
+		while (head != NONE && time(head) < before) {
+			remove(buffer.getLong(head * SLOT));
+			count ++;
+		}
+		return count;
+	}
+
+	// 输出修改过的序列并清空修改记录，已经删除的序列跳过
+	public int drainDirty(Visitor visitor) {
+		int count = 0;
+		for (int i = 0; i < dirtyCount; i ++) {
+			int index = indexOf(dirty[i]);
+			if (index >= 0) {
+				visitor.visit(dirty[i], check(index), time(index), value(index, 0), value(index, 1));
+				count ++;
+			}
+		}
+		dirtyCount = 0;
+		if (dirty.length > 1024 * 1024) {
+			dirty = new long[1024];
+		}
+		return count;
+	}
+
+	public void forEach(Visitor visitor) {
+		for (int i = head; i != NONE; i = next(i)) {
+			visitor.visit(buffer.getLong(i * SLOT), check(i), time(i), value(i, 0), value(i, 1));
+		}
+	}
+
+	// 按 id 的无符号顺序输出所有序列
+	public void forEachSorted(Visitor visitor) {
+		long[] ids = new long[size];
+		int n = 0;
+		for (int i = 0; i < capacity; i ++) {
+			long id = buffer.getLong(i * SLOT);
+			if (id != 0) {
+				ids[n ++] = id ^ Long.MIN_VALUE;
+			}
+		}
+		Arrays.sort(ids, 0, n);
+		for (int i = 0; i < n; i ++) {
+			long id = ids[i] ^ Long.MIN_VALUE;
+			int index = indexOf(id);
+			visitor.visit(id, check(index), time(index), value(index, 0), value(index, 1));
+		}
+	}
+
+	private int slot(long id) {
+		return (int)(id ^ (id >>> 32)) & mask;
+	}
+
+	private int prev(int index) {
+		return buffer.getInt(index * SLOT + PREV);
+	}
+
+	private int next(int index) {
+		return buffer.getInt(index * SLOT + NEXT);
+	}
+
+	private void append(int index) {
+		buffer.putInt(index * SLOT + PREV, tail);
+		buffer.putInt(index * SLOT + NEXT, NONE);
+		if (tail == NONE) {
+			head = index;
+		} else {
+			buffer.putInt(tail * SLOT + NEXT, index);
+		}
+		tail = index;
+	}
+
+	private void unlink(int index) {
+		int prev = prev(index);
+		int next = next(index);
+		if (prev == NONE) {
+			head = next;
+		} else {
+			buffer.putInt(prev * SLOT + NEXT, next);
+		}
+		if (next == NONE) {
+			tail = prev;
+		} else {
+			buffer.putInt(next * SLOT + PREV, prev);
+		}
+	}
+
+	// 槽在表中移动时，同时修改链表中前后节点的指针
+	private void move(int from, int to) {
+		for (int i = 0; i < SLOT; i += 8) {
+			buffer.putLong(to * SLOT + i, buffer.getLong(from * SLOT + i));
+		}
+		int prev = prev(to);
+		int next = next(to);
+		if (prev == NONE) {
+			head = to;
+		} else {
+			buffer.putInt(prev * SLOT + NEXT, to);
+		}
+		if (next == NONE) {
+			tail = to;
+		} else {
+			buffer.putInt(next * SLOT + PREV, to);
+		}
+	}
+
+	private void allocate(int capacity) {
+		if (capacity > MAX_CAPACITY) {
+			throw new IllegalStateException("series store is full, capacity: " + this.capacity);
+		}
+		this.capacity = capacity;
+		this.buffer = direct ? ByteBuffer.allocateDirect(capacity * SLOT) : ByteBuffer.allocate(capacity * SLOT);
+		this.mask = capacity - 1;
+		this.threshold = capacity / 4 * 3;
+	}
+
+	// 按链表顺序搬到新表中，保持写入顺序
+	private void resize() {
+		ByteBuffer old = buffer;
+		int first = head;
+		allocate(capacity << 1);
+		head = NONE;
+		tail = NONE;
+		for (int i = first; i != NONE; i = old.getInt(i * SLOT + NEXT)) {
+			long id = old.getLong(i * SLOT);
+			int j = slot(id);
+			while (buffer.getLong(j * SLOT) != 0) {
+				j = (j + 1) & mask;
+			}
+			for (int k = 0; k < PREV; k += 8) {
+				buffer.putLong(j * SLOT + k, old.getLong(i * SLOT + k));
+			}
+			append(j);
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package cn.batchfile.metrics.collector.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 把字节片段转换成字符串，重复出现的名称和标签直接复用已有的实例。
+ * 只缓存较短的 ASCII 片段，冲突时覆盖旧值，不是线程安全的。
+ */
+public final class StringCache {
+
+	private static final int MAX_LENGTH = 64;
+	private final String[] table;
+	private final int mask;
+
+	public StringCache(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+		table = new String[size];
+		mask = size - 1;
+	}
+
+	public String get(byte[] b, int offset, int length) {
+		if (length > MAX_LENGTH) {
+			return new String(b, offset, length, StandardCharsets.UTF_8);
+		}
+
+		int h = 0;
+		for (int i = offset; i < offset + length; i ++) {
+			if (b[i] < 0) {
+				return new String(b, offset, length, StandardCharsets.UTF_8);
+			}
+			h = 31 * h + b[i];
+		}
+
+		int index = (h ^ (h >>> 16)) & mask;
+		String s = table[index];
+		if (s != null && equals(s, b, offset, length)) {
+			return s;
+		}
+
+		s = new String(b, offset, length, StandardCharsets.ISO_8859_1);
+		table[index] = s;
+		return s;
+	}
+
+	private static boolean equals(String s, byte[] b, int offset, int length) {
+		if (s.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i ++) {
+			if (s.charAt(i) != b[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
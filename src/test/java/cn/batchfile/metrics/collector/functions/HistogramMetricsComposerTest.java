@@ -0,0 +1,64 @@
+package cn.batchfile.metrics.collector.functions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.domain.RawData.Type;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+
+public class HistogramMetricsComposerTest {
+
+	@Test
+	public void testYammerHistogram() {
+		String json = "{\"histograms\":{\"response\":{\"type\":\"histogram\",\"count\":12,\"max\":30,\"p99\":28.5}}}";
+		List<RawData> datas = new ArrayList<>();
+		new YammerDataParser().parse(json.getBytes(StandardCharsets.UTF_8), MetricFilter.ALL, datas::add);
+		assertEquals(3, datas.size());
+		assertEquals(Type.HISTOGRAM, datas.get(0).getType());
+
+		// 没有 bucket 的 histogram 按原值输出
+		HistogramMetricsComposer composer = new HistogramMetricsComposer(null);
+		ScrapeBatch batch = new ScrapeBatch("127.0.0.1", 8080, 0, datas.size());
+		for (RawData data : datas) {
+			composer.accept(data, batch);
+		}
+		assertEquals(3, batch.size());
+		assertEquals("histograms.response.count", batch.getMetric(0));
+		assertEquals(12, batch.getValue(0), 0);
+		assertEquals("histograms.response.max", batch.getMetric(1));
+		assertEquals(30, batch.getValue(1), 0);
+		assertEquals("histograms.response.p99", batch.getMetric(2));
+		assertEquals(28.5, batch.getValue(2), 0);
+	}
+
+	@Test
+	public void testQuantile() {
+		double[] bounds = {1, 2, 4, Double.POSITIVE_INFINITY};
+		double[] values = {10, 25, 2, 6, 8, 10};
+		// 在 bucket 内线性插值
+		assertEquals(1.75, HistogramMetricsComposer.quantile(0.5, bounds, values), 1e-9);
+		// 第一个 bucket 的下限是 0
+		assertEquals(0.5, HistogramMetricsComposer.quantile(0.1, bounds, values), 1e-9);
+		// 落在 +Inf bucket 时返回前一个上限
+		assertEquals(4, HistogramMetricsComposer.quantile(0.95, bounds, values), 1e-9);
+	}
+
+	@Test
+	public void testQuantileEmptyBucket() {
+		double[] bounds = {1, 2, 4, Double.POSITIVE_INFINITY};
+		// 跳过没有数据的 bucket
+		double[] values = {10, 25, 2, 2, 8, 10};
+		assertEquals(3, HistogramMetricsComposer.quantile(0.5, bounds, values), 1e-9);
+
+		// 没有任何数据时返回第一个上限
+		double[] empty = {0, 0, 0, 0, 0, 0};
+		assertEquals(1, HistogramMetricsComposer.quantile(0.5, bounds, empty), 1e-9);
+	}
+
+}
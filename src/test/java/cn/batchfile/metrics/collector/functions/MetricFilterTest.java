@@ -0,0 +1,121 @@
+package cn.batchfile.metrics.collector.functions;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Test;
+
+public class MetricFilterTest {
+
+	@Test
+	public void testAll() {
+		assertTrue(MetricFilter.ALL.test("anything"));
+		assertFalse(MetricFilter.ALL.hasLabelRules());
+	}
+
+	@Test
+	public void testExactAndPrefix() {
+		MetricFilter filter = MetricFilter.compile(null, Arrays.asList("system.load.average.1m", "jvm_gc_*"));
+		assertFalse(filter.test("system.load.average.1m"));
+		assertTrue(filter.test("system.load.average.1m.max"));
+		assertFalse(filter.test("jvm_gc_pause_seconds"));
+		assertFalse(filter.test("jvm_gc_"));
+		assertTrue(filter.test("jvm_gc"));
+		assertTrue(filter.test("jvm_memory_used"));
+	}
+
+	@Test
+	public void testGlob() {
+		MetricFilter filter = MetricFilter.compile(null, Arrays.asList("http_*_seconds", "jvm_?c", "a.b*c"));
+		assertFalse(filter.test("http_server_requests_seconds"));
+		assertTrue(filter.test("http_server_requests_seconds_max"));
+		assertFalse(filter.test("jvm_gc"));
+		assertTrue(filter.test("jvm_ggc"));
+		// 通配符以外的字符按字面匹配
+		assertFalse(filter.test("a.bxyzc"));
+		assertTrue(filter.test("axbc"));
+	}
+
+	@Test
+	public void testRegex() {
+		MetricFilter filter = MetricFilter.compile(null, Arrays.asList("/tomcat_(sessions|threads)_.+/"));
+		assertFalse(filter.test("tomcat_sessions_active"));
+		assertFalse(filter.test("tomcat_threads_busy"));
+		assertTrue(filter.test("tomcat_global_error"));
+		// 匹配完整名称
+		assertTrue(filter.test("x_tomcat_sessions_active"));
+	}
+
+	@Test
+	public void testIncludesAndExcludes() {
+		MetricFilter filter = MetricFilter.compile(Arrays.asList("jvm_*"), Arrays.asList("jvm_gc_*"));
+		assertTrue(filter.test("jvm_memory_used"));
+		assertFalse(filter.test("jvm_gc_pause"));
+		assertFalse(filter.test("http_requests_total"));
+	}
+
+	@Test
+	public void testExcludeLabels() {
+		MetricFilter filter = MetricFilter.compile(null,
+				Arrays.asList("http_server_requests_seconds{uri=~\"/actuator/.*\",status!=\"200\"}"));
+		assertTrue(filter.hasLabelRules());
+		// 名称通过，标签再判断
+		assertTrue(filter.test("http_server_requests_seconds"));
+		assertFalse(filter.test("http_server_requests_seconds", tags("uri", "/actuator/health", "status", "500")));
+		assertTrue(filter.test("http_server_requests_seconds", tags("uri", "/actuator/health", "status", "200")));
+		assertTrue(filter.test("http_server_requests_seconds", tags("uri", "/api/a", "status", "500")));
+		assertTrue(filter.test("other", tags("uri", "/actuator/health", "status", "500")));
+	}
+
+	@Test
+	public void testIncludeLabels() {
+		MetricFilter filter = MetricFilter.compile(Arrays.asList("jvm_*", "http_*{method=\"GET\"}", "{team=\"a\"}"), null);
+		assertTrue(filter.test("jvm_threads"));
+		// 带标签的包含规则先按名称放行，再按标签判断
+		assertTrue(filter.test("http_requests_total"));
+		assertTrue(filter.test("http_requests_total", tags("method", "GET")));
+		assertFalse(filter.test("http_requests_total", tags("method", "POST")));
+		assertTrue(filter.test("http_requests_total", tags("method", "POST", "team", "a")));
+		// 缺少的标签按空字符串匹配
+		assertFalse(filter.test("http_requests_total", null));
+		assertTrue(filter.test("jvm_threads", null));
+	}
+
+	@Test
+	public void testEscapedLabelValue() {
+		MetricFilter filter = MetricFilter.compile(null, Arrays.asList("m{path=\"C:\\\\dir \\\"x\\\"\"}"));
+		assertFalse(filter.test("m", tags("path", "C:\\dir \"x\"")));
+		assertTrue(filter.test("m", tags("path", "C:\\dir")));
+	}
+
+	@Test
+	public void testBlankRules() {
+		MetricFilter filter = MetricFilter.compile(Arrays.asList(" ", ""), Collections.singletonList(null));
+		assertTrue(filter.test("anything"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidLabelMatcher() {
+		MetricFilter.compile(null, Arrays.asList("m{path~\"x\"}"));
+	}
+
+	@Test(expected = PatternSyntaxException.class)
+	public void testInvalidRegex() {
+		MetricFilter.compile(null, Arrays.asList("/tomcat_(/"));
+	}
+
+	private static Map<String, String> tags(String... kvs) {
+		Map<String, String> tags = new HashMap<>();
+		for (int i = 0; i < kvs.length; i += 2) {
+			tags.put(kvs[i], kvs[i + 1]);
+		}
+		return tags;
+	}
+
+}
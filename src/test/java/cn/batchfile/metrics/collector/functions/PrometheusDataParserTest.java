@@ -0,0 +1,163 @@
+package cn.batchfile.metrics.collector.functions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.domain.RawData.Type;
+
+public class PrometheusDataParserTest {
+
+	@Test
+	public void testCounterAndGauge() {
+		List<RawData> datas = parse(
+				"# HELP http_requests_total Total requests.\n"
+				+ "# TYPE http_requests_total counter\n"
+				+ "http_requests_total{method=\"GET\",uri=\"/a\"} 1027 1395066363000\n"
+				+ "http_requests_total{method=\"POST\",uri=\"/a\"} 3\n"
+				+ "# TYPE jvm_threads_live gauge\n"
+				+ "jvm_threads_live 42.5\n"
+				+ "untyped_metric -1.5e3\n");
+		assertEquals(4, datas.size());
+
+		assertEquals("http_requests_total", datas.get(0).getName());
+		assertEquals(Type.COUNTER, datas.get(0).getType());
+		assertEquals("GET", datas.get(0).getTags().get("method"));
+		assertEquals("/a", datas.get(0).getTags().get("uri"));
+		assertEquals(1027, datas.get(0).getValues()[0], 0);
+		assertEquals(3, datas.get(1).getValues()[0], 0);
+
+		assertEquals(Type.GAUGE, datas.get(2).getType());
+		assertEquals(42.5, datas.get(2).getValues()[0], 0);
+		assertEquals(Type.UNTYPED, datas.get(3).getType());
+		assertEquals(-1500, datas.get(3).getValues()[0], 0);
+	}
+
+	@Test
+	public void testSpecialValuesAndEscapes() {
+		List<RawData> datas = parse(
+				"# TYPE g gauge\n"
+				+ "g{path=\"C:\\\\dir\",msg=\"say \\\"hi\\\"\\n\"} +Inf\n"
+				+ "g{path=\"x\"} -Inf\n"
+				+ "g{path=\"y\"} NaN\n"
+				+ "g{path=\"z\"} not-a-number\n"
+				+ "g{path=\"broken} 1\n");
+		assertEquals(3, datas.size());
+		assertEquals("C:\\dir", datas.get(0).getTags().get("path"));
+		assertEquals("say \"hi\"\n", datas.get(0).getTags().get("msg"));
+		assertEquals(Double.POSITIVE_INFINITY, datas.get(0).getValues()[0], 0);
+		assertEquals(Double.NEGATIVE_INFINITY, datas.get(1).getValues()[0], 0);
+		assertTrue(Double.isNaN(datas.get(2).getValues()[0]));
+	}
+
+	@Test
+	public void testOpenMetricsCounter() {
+		List<RawData> datas = parse(
+				"# TYPE requests counter\n"
+				+ "requests_total{code=\"200\"} 10\n"
+				+ "requests_created{code=\"200\"} 1.6e9\n"
+				+ "# EOF\n");
+		assertEquals(1, datas.size());
+		assertEquals("requests_total", datas.get(0).getName());
+		assertEquals(Type.COUNTER, datas.get(0).getType());
+		assertEquals(10, datas.get(0).getValues()[0], 0);
+	}
+
+	@Test
+	public void testFamilyPrefix() {
+		// 以族名开头但不是这个类型的样本后缀，属于另一个指标
+		List<RawData> datas = parse(
+				"# TYPE http_requests counter\n"
+				+ "http_requests_total 10\n"
+				+ "http_requests_total_bytes 2048\n"
+				+ "# TYPE latency summary\n"
+				+ "latency_count 4\n"
+				+ "latency_sum 2\n"
+				+ "latency_seconds_max 0.9\n");
+		assertEquals(4, datas.size());
+		assertEquals("http_requests_total", datas.get(0).getName());
+		assertEquals(Type.COUNTER, datas.get(0).getType());
+		assertEquals("http_requests_total_bytes", datas.get(1).getName());
+		assertEquals(Type.UNTYPED, datas.get(1).getType());
+		assertEquals(2048, datas.get(1).getValues()[0], 0);
+
+		// summary 的 _count 和 _sum 合并成一条数据
+		assertEquals("latency", datas.get(2).getName());
+		assertEquals(Type.SUMMARY, datas.get(2).getType());
+		assertEquals("latency_seconds_max", datas.get(3).getName());
+		assertEquals(Type.UNTYPED, datas.get(3).getType());
+	}
+
+	@Test
+	public void testSummary() {
+		List<RawData> datas = parse(
+				"# TYPE rpc_seconds summary\n"
+				+ "rpc_seconds{quantile=\"0.5\"} 0.2\n"
+				+ "rpc_seconds_sum 17.5\n"
+				+ "rpc_seconds_count 35\n"
+				+ "rpc_seconds_sum{service=\"b\"} 1\n"
+				+ "rpc_seconds_count{service=\"b\"} 2\n");
+		assertEquals(2, datas.size());
+		assertEquals("rpc_seconds", datas.get(0).getName());
+		assertEquals(Type.SUMMARY, datas.get(0).getType());
+		assertArrayEquals(new double[] {35, 17.5}, datas.get(0).getValues(), 0);
+		assertEquals("b", datas.get(1).getTags().get("service"));
+		assertArrayEquals(new double[] {2, 1}, datas.get(1).getValues(), 0);
+	}
+
+	@Test
+	public void testHistogram() {
+		// bucket 顺序不固定，le 不作为标签，没有 +Inf 时用 _count 补上
+		List<RawData> datas = parse(
+				"# TYPE request_seconds histogram\n"
+				+ "request_seconds_bucket{uri=\"/a\",le=\"0.5\"} 8\n"
+				+ "request_seconds_bucket{uri=\"/a\",le=\"0.1\"} 3\n"
+				+ "request_seconds_bucket{uri=\"/a\",le=\"1.0\"} 9\n"
+				+ "request_seconds_sum{uri=\"/a\"} 4.5\n"
+				+ "request_seconds_count{uri=\"/a\"} 10\n"
+				+ "request_seconds_bucket{uri=\"/b\",le=\"+Inf\"} 1\n"
+				+ "request_seconds_count{uri=\"/b\"} 1\n");
+		assertEquals(2, datas.size());
+
+		RawData a = datas.get(0);
+		assertEquals("request_seconds", a.getName());
+		assertEquals(Type.HISTOGRAM, a.getType());
+		assertEquals(Arrays.asList("uri"), new ArrayList<>(a.getTags().keySet()));
+		assertArrayEquals(new double[] {0.1, 0.5, 1.0, Double.POSITIVE_INFINITY}, a.getBounds(), 0);
+		assertArrayEquals(new double[] {10, 4.5, 3, 8, 9, 10}, a.getValues(), 0);
+
+		RawData b = datas.get(1);
+		assertEquals("/b", b.getTags().get("uri"));
+		assertArrayEquals(new double[] {Double.POSITIVE_INFINITY}, b.getBounds(), 0);
+		assertArrayEquals(new double[] {1, 0, 1}, b.getValues(), 0);
+	}
+
+	@Test
+	public void testFilter() {
+		MetricFilter filter = MetricFilter.compile(null, Arrays.asList("jvm_*", "http_requests_total{method=\"POST\"}"));
+		List<RawData> datas = new ArrayList<>();
+		new PrometheusDataParser().parse((
+				"# TYPE http_requests_total counter\n"
+				+ "http_requests_total{method=\"GET\"} 1\n"
+				+ "http_requests_total{method=\"POST\"} 2\n"
+				+ "# TYPE jvm_threads_live gauge\n"
+				+ "jvm_threads_live 42\n").getBytes(StandardCharsets.UTF_8), filter, datas::add);
+		assertEquals(1, datas.size());
+		assertEquals("GET", datas.get(0).getTags().get("method"));
+	}
+
+	private static List<RawData> parse(String content) {
+		List<RawData> datas = new ArrayList<>();
+		new PrometheusDataParser().parse(content.getBytes(StandardCharsets.UTF_8), MetricFilter.ALL, datas::add);
+		return datas;
+	}
+
+}
@@ -0,0 +1,190 @@
+package cn.batchfile.metrics.collector.functions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import cn.batchfile.metrics.collector.domain.RawData;
+import cn.batchfile.metrics.collector.domain.RawData.Type;
+
+public class PrometheusProtobufParserTest {
+
+	// io.prometheus.client.MetricType
+	private static final int COUNTER = 0;
+	private static final int GAUGE = 1;
+	private static final int SUMMARY = 2;
+	private static final int HISTOGRAM = 4;
+
+	@Test
+	public void testCounterAndGauge() {
+		byte[] content = delimited(
+				family("http_requests_total", COUNTER,
+						metric(label("method", "GET"), label("uri", "/a"), message(3, fixed64(1, 1027))),
+						metric(label("method", "POST"), message(3, fixed64(1, 3)))),
+				family("jvm_threads_live", GAUGE,
+						metric(message(2, fixed64(1, 42.5)))));
+		List<RawData> datas = parse(content, MetricFilter.ALL);
+		assertEquals(3, datas.size());
+
+		assertEquals("http_requests_total", datas.get(0).getName());
+		assertEquals(Type.COUNTER, datas.get(0).getType());
+		assertEquals("GET", datas.get(0).getTags().get("method"));
+		assertEquals("/a", datas.get(0).getTags().get("uri"));
+		assertEquals(1027, datas.get(0).getValues()[0], 0);
+		assertEquals("POST", datas.get(1).getTags().get("method"));
+		assertEquals(3, datas.get(1).getValues()[0], 0);
+
+		assertEquals("jvm_threads_live", datas.get(2).getName());
+		assertEquals(Type.GAUGE, datas.get(2).getType());
+		assertEquals(42.5, datas.get(2).getValues()[0], 0);
+	}
+
+	@Test
+	public void testSummary() {
+		byte[] content = delimited(family("rpc_seconds", SUMMARY,
+				metric(message(4, concat(varint(1, 35), fixed64(2, 17.5),
+						message(3, concat(fixed64(1, 0.5), fixed64(2, 0.2))))))));
+		List<RawData> datas = parse(content, MetricFilter.ALL);
+		assertEquals(1, datas.size());
+		assertEquals(Type.SUMMARY, datas.get(0).getType());
+		assertArrayEquals(new double[] {35, 17.5}, datas.get(0).getValues(), 0);
+	}
+
+	@Test
+	public void testHistogram() {
+		// 没有 +Inf 的 bucket 时用 sample_count 补上
+		byte[] content = delimited(family("request_seconds", HISTOGRAM,
+				metric(label("uri", "/a"), message(7, concat(varint(1, 10), fixed64(2, 4.5),
+						bucket(3, 0.1), bucket(8, 0.5), bucket(9, 1.0))))));
+		List<RawData> datas = parse(content, MetricFilter.ALL);
+		assertEquals(1, datas.size());
+		RawData data = datas.get(0);
+		assertEquals("request_seconds", data.getName());
+		assertEquals(Type.HISTOGRAM, data.getType());
+		assertEquals("/a", data.getTags().get("uri"));
+		assertArrayEquals(new double[] {0.1, 0.5, 1.0, Double.POSITIVE_INFINITY}, data.getBounds(), 0);
+		assertArrayEquals(new double[] {10, 4.5, 3, 8, 9, 10}, data.getValues(), 0);
+	}
+
+	@Test
+	public void testFilterAndUnknownFields() {
+		// help 和 timestamp_ms 等不处理的字段被跳过
+		byte[] content = delimited(
+				concat(bytes(2, "help text"), family("jvm_gc_pause", GAUGE, metric(message(2, fixed64(1, 1))))),
+				family("process_cpu", GAUGE, metric(message(2, fixed64(1, 0.25)), varint(6, 1395066363000L))));
+		List<RawData> datas = parse(content, MetricFilter.compile(null, Arrays.asList("jvm_*")));
+		assertEquals(1, datas.size());
+		assertEquals("process_cpu", datas.get(0).getName());
+		assertEquals(0.25, datas.get(0).getValues()[0], 0);
+	}
+
+	@Test
+	public void testTruncated() {
+		byte[] content = delimited(
+				family("a", GAUGE, metric(message(2, fixed64(1, 1)))),
+				family("b", GAUGE, metric(message(2, fixed64(1, 2)))));
+		byte[] truncated = Arrays.copyOf(content, content.length - 3);
+
+		// 采集时记录错误，保留已经解析的数据
+		assertEquals(1, parse(truncated, MetricFilter.ALL).size());
+
+		// 推送时整个请求作废
+		try {
+			new PrometheusProtobufParser().parseStrictly(truncated, MetricFilter.ALL, data -> {});
+			throw new AssertionError("truncated content accepted");
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	private static List<RawData> parse(byte[] content, MetricFilter filter) {
+		List<RawData> datas = new ArrayList<>();
+		new PrometheusProtobufParser().parse(content, filter, datas::add);
+		return datas;
+	}
+
+	private static byte[] family(String name, int type, byte[]... metrics) {
+		byte[][] fields = new byte[metrics.length + 2][];
+		fields[0] = bytes(1, name);
+		fields[1] = varint(3, type);
+		for (int i = 0; i < metrics.length; i ++) {
+			fields[i + 2] = message(4, metrics[i]);
+		}
+		return concat(fields);
+	}
+
+	private static byte[] metric(byte[]... fields) {
+		return concat(fields);
+	}
+
+	private static byte[] label(String name, String value) {
+		return message(1, concat(bytes(1, name), bytes(2, value)));
+	}
+
+	private static byte[] bucket(long count, double bound) {
+		return message(3, concat(varint(1, count), fixed64(2, bound)));
+	}
+
+	// 每个 MetricFamily 前面是 varint 长度
+	private static byte[] delimited(byte[]... families) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] family : families) {
+			writeVarint(out, family.length);
+			out.write(family, 0, family.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] message(int field, byte[] content) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeVarint(out, field << 3 | 2);
+		writeVarint(out, content.length);
+		out.write(content, 0, content.length);
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(int field, String value) {
+		return message(field, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static byte[] varint(int field, long value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeVarint(out, field << 3);
+		writeVarint(out, value);
+		return out.toByteArray();
+	}
+
+	private static byte[] fixed64(int field, double value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeVarint(out, field << 3 | 1);
+		long bits = Double.doubleToLongBits(value);
+		for (int i = 0; i < 8; i ++) {
+			out.write((int)(bits >>> (i * 8)) & 0xff);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts) {
+			out.write(part, 0, part.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int)(value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+
+}
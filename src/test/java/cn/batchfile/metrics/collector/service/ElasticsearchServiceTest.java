@@ -0,0 +1,125 @@
+package cn.batchfile.metrics.collector.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import cn.batchfile.metrics.collector.config.ElasticsearchConfig;
+import cn.batchfile.metrics.collector.config.QueueConfig;
+import cn.batchfile.metrics.collector.config.RollupConfig;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ElasticsearchServiceTest {
+
+	private HttpServer server;
+	private List<JsonNode> documents = new CopyOnWriteArrayList<>();
+	private QueueService queueService;
+	private ElasticsearchService elasticsearchService;
+
+	@Before
+	public void setUp() throws IOException {
+		// 本地的 _bulk 桩服务，记录写入的文档
+		ObjectMapper mapper = new ObjectMapper();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/_bulk", exchange -> {
+			try (InputStream in = exchange.getRequestBody()) {
+				String[] lines = IOUtils.toString(in, StandardCharsets.UTF_8).split("\n");
+				for (int i = 1; i < lines.length; i += 2) {
+					documents.add(mapper.readTree(lines[i]));
+				}
+			}
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+		});
+		server.start();
+
+		queueService = new QueueService(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(queueService, "queueConfig", new QueueConfig());
+		queueService.init();
+
+		ElasticsearchConfig config = new ElasticsearchConfig();
+		config.setEnabled(true);
+		config.setHosts(Collections.singletonList("127.0.0.1:" + server.getAddress().getPort()));
+		config.setWorker(1);
+		config.setIndex("'metrics-'yyyy-MM-dd");
+		config.setMaxRetries(1);
+		config.setBulkMaxSize(100);
+		config.setHeartbeat(5);
+
+		elasticsearchService = new ElasticsearchService(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(elasticsearchService, "elasticsearchConfig", config);
+		ReflectionTestUtils.setField(elasticsearchService, "rollupConfig", new RollupConfig());
+		ReflectionTestUtils.setField(elasticsearchService, "restTemplate", new RestTemplate());
+		ReflectionTestUtils.setField(elasticsearchService, "queueService", queueService);
+		elasticsearchService.init();
+	}
+
+	@After
+	public void tearDown() {
+		queueService.destroy();
+		server.stop(0);
+	}
+
+	@Test
+	public void testConstantRateCounter() throws Exception {
+		// 计数器每个周期增加 5，增量每次都相同；gauge 的值不变
+		for (int i = 0; i < 20; i ++) {
+			ScrapeBatch batch = new ScrapeBatch("127.0.0.1", 8080, 1000L * i, 2);
+			batch.add("http_requests_total", null, null, 5, true);
+			batch.add("jvm_threads_live", null, null, 10);
+			queueService.put(batch);
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (sum("http_requests_total") < 100 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(100, sum("http_requests_total"), 0);
+		assertEquals(20, count("http_requests_total"));
+		// 没有变化的 gauge 每 heartbeat 个周期写一次
+		assertEquals(Arrays.asList(10.0, 10.0, 10.0, 10.0), values("jvm_threads_live"));
+	}
+
+	private double sum(String metric) {
+		double sum = 0;
+		for (double value : values(metric)) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	private int count(String metric) {
+		return values(metric).size();
+	}
+
+	private List<Double> values(String metric) {
+		List<Double> values = new ArrayList<>();
+		for (JsonNode document : documents) {
+			if (metric.equals(document.get("metric").asText())) {
+				values.add(document.get("value").asDouble());
+			}
+		}
+		return values;
+	}
+
+}
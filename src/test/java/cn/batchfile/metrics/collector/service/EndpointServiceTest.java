@@ -0,0 +1,160 @@
+package cn.batchfile.metrics.collector.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import com.sun.net.httpserver.HttpServer;
+
+import cn.batchfile.metrics.collector.config.BeatConfig;
+import cn.batchfile.metrics.collector.domain.Instance;
+import cn.batchfile.metrics.collector.functions.PrometheusDataParser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class EndpointServiceTest {
+
+	private HttpServer server;
+	private Map<String, String> responses = new ConcurrentHashMap<>();
+	private Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+	private EndpointService endpointService;
+	private ExecutorService probeExecutor;
+
+	@Before
+	public void setUp() throws IOException {
+		// 本地的 eureka 桩服务，同时作为实例的 /prometheus 端点
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			String path = exchange.getRequestURI().getPath();
+			requests.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+			String body = responses.get(path);
+			if ("HEAD".equals(exchange.getRequestMethod()) || body == null) {
+				exchange.sendResponseHeaders(body == null && !path.equals("/prometheus") ? 404 : 200, -1);
+			} else {
+				byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, bytes.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(bytes);
+				}
+			}
+			exchange.close();
+		});
+		server.start();
+
+		BeatConfig beatConfig = new BeatConfig();
+		beatConfig.setEureka("http://127.0.0.1:" + server.getAddress().getPort() + "/eureka/apps");
+		beatConfig.setEurekaDelta(true);
+
+		endpointService = new EndpointService(new SimpleMeterRegistry());
+		endpointService.PARSERS.put("/prometheus", new PrometheusDataParser());
+		ReflectionTestUtils.setField(endpointService, "beatConfig", beatConfig);
+		ReflectionTestUtils.setField(endpointService, "restTemplate", new RestTemplate());
+		probeExecutor = Executors.newFixedThreadPool(2);
+		ReflectionTestUtils.setField(endpointService, "probeExecutor", probeExecutor);
+	}
+
+	@After
+	public void tearDown() {
+		probeExecutor.shutdownNow();
+		server.stop(0);
+	}
+
+	@Test
+	public void testDelta() throws Exception {
+		responses.put("/eureka/apps", apps("UP_2_", instance("a", "UP", null), instance("b", "UP", null)));
+		refresh();
+		assertEquals("[a, b]", ids());
+		assertEquals(2, endpointService.getHosts().size());
+		assertEquals(1, count("/eureka/apps"));
+
+		// 增量中新增的实例
+		responses.put("/eureka/apps/delta", apps("UP_3_", instance("c", "UP", "ADDED")));
+		refresh();
+		assertEquals("[a, b, c]", ids());
+		assertEquals(1, count("/eureka/apps"));
+		assertEquals(1, count("/eureka/apps/delta"));
+
+		// 增量中删除的实例
+		responses.put("/eureka/apps/delta", apps("UP_2_", instance("b", "UP", "DELETED")));
+		refresh();
+		assertEquals("[a, c]", ids());
+		assertEquals(2, endpointService.getHosts().size());
+		assertEquals(1, count("/eureka/apps"));
+	}
+
+	@Test
+	public void testHashcodeMismatch() throws Exception {
+		responses.put("/eureka/apps", apps("UP_1_", instance("a", "UP", null)));
+		refresh();
+		assertEquals("[a]", ids());
+
+		// 本地应用增量以后是 DOWN_1_UP_1_，与远端不一致，重新全量获取
+		responses.put("/eureka/apps/delta", apps("UP_3_", instance("b", "DOWN", "ADDED")));
+		responses.put("/eureka/apps", apps("UP_3_", instance("a", "UP", null), instance("b", "UP", null), instance("c", "UP", null)));
+		refresh();
+		assertEquals("[a, b, c]", ids());
+		assertEquals(2, count("/eureka/apps"));
+		assertEquals(1, count("/eureka/apps/delta"));
+	}
+
+	@Test
+	public void testInstanceWithoutStatusPage() throws Exception {
+		// 没有 statusPageUrl 的实例不探测，但是计入 hashcode
+		responses.put("/eureka/apps", apps("UP_2_", instance("a", "UP", null), "{\"instanceId\":\"x\",\"app\":\"DEMO\",\"status\":\"UP\"}"));
+		refresh();
+		assertEquals("[a, x]", ids());
+		assertEquals(1, endpointService.getHosts().size());
+
+		responses.put("/eureka/apps/delta", apps("UP_3_", instance("c", "UP", "ADDED")));
+		refresh();
+		assertEquals("[a, x, c]", ids());
+		assertEquals(2, endpointService.getHosts().size());
+		assertEquals(1, count("/eureka/apps"));
+		assertEquals(1, count("/eureka/apps/delta"));
+	}
+
+	private void refresh() {
+		ReflectionTestUtils.invokeMethod(endpointService, "refresh");
+	}
+
+	private int count(String path) {
+		AtomicInteger count = requests.get(path);
+		return count == null ? 0 : count.get();
+	}
+
+	private String ids() {
+		List<String> ids = new ArrayList<>();
+		for (Instance instance : endpointService.getInstances()) {
+			ids.add(instance.getInstanceId());
+		}
+		return ids.toString();
+	}
+
+	private String instance(String id, String status, String actionType) {
+		String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/info";
+		return "{\"instanceId\":\"" + id + "\",\"app\":\"DEMO\",\"status\":\"" + status + "\",\"statusPageUrl\":\"" + url
+				+ "\",\"lastUpdatedTimestamp\":1" + (actionType == null ? "" : ",\"actionType\":\"" + actionType + "\"") + "}";
+	}
+
+	private String apps(String hashcode, String... instances) {
+		return "{\"applications\":{\"apps__hashcode\":\"" + hashcode + "\",\"application\":[{\"name\":\"DEMO\",\"instance\":["
+				+ String.join(",", instances) + "]}]}}";
+	}
+
+}
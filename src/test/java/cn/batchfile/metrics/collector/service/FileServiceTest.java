@@ -0,0 +1,95 @@
+package cn.batchfile.metrics.collector.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cn.batchfile.metrics.collector.config.FileConfig;
+import cn.batchfile.metrics.collector.config.QueueConfig;
+import cn.batchfile.metrics.collector.domain.ScrapeBatch;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FileServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File file;
+	private QueueService queueService;
+
+	@Before
+	public void setUp() throws Exception {
+		file = new File(folder.getRoot(), "metrics");
+
+		queueService = new QueueService(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(queueService, "queueConfig", new QueueConfig());
+		queueService.init();
+
+		FileConfig config = new FileConfig();
+		config.setEnabled(true);
+		config.setName(file.getAbsolutePath());
+		config.setHeartbeat(5);
+
+		FileService fileService = new FileService(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(fileService, "fileConfig", config);
+		ReflectionTestUtils.setField(fileService, "queueService", queueService);
+		fileService.init();
+	}
+
+	@After
+	public void tearDown() {
+		queueService.destroy();
+	}
+
+	@Test
+	public void testConstantRateCounter() throws Exception {
+		// 计数器每个周期增加 5，增量每次都相同；gauge 的值不变
+		for (int i = 0; i < 20; i ++) {
+			ScrapeBatch batch = new ScrapeBatch("127.0.0.1", 8080, 1000L * i, 2);
+			batch.add("http_requests_total", null, null, 5, true);
+			batch.add("jvm_threads_live", null, null, 10);
+			queueService.put(batch);
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (values("http_requests_total").size() < 20 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		List<Double> values = values("http_requests_total");
+		assertEquals(20, values.size());
+		assertEquals(100, values.stream().mapToDouble(Double::doubleValue).sum(), 0);
+		// 没有变化的 gauge 每 heartbeat 个周期写一次
+		assertEquals(Arrays.asList(10.0, 10.0, 10.0, 10.0), values("jvm_threads_live"));
+	}
+
+	// 每一行是一个 JSON 文档
+	private List<Double> values(String metric) throws Exception {
+		List<Double> values = new ArrayList<>();
+		if (!file.exists()) {
+			return values;
+		}
+		ObjectMapper mapper = new ObjectMapper();
+		for (String line : FileUtils.readLines(file, StandardCharsets.UTF_8)) {
+			JsonNode document = mapper.readTree(line);
+			if (metric.equals(document.get("metric").asText())) {
+				values.add(document.get("value").asDouble());
+			}
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,121 @@
+package cn.batchfile.metrics.collector.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+	@Test
+	public void testNoReader() throws InterruptedException {
+		RingBuffer<Integer> buffer = create(4, 0);
+		for (int i = 0; i < 10; i ++) {
+			assertTrue(buffer.publish(i, 0, TimeUnit.MILLISECONDS));
+		}
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void testCapacity() {
+		assertEquals(2, create(1, 0).getCapacity());
+		assertEquals(8, create(8, 0).getCapacity());
+		assertEquals(16, create(9, 0).getCapacity());
+	}
+
+	@Test
+	public void testSlowReader() throws InterruptedException {
+		RingBuffer<Integer> buffer = create(4, 0);
+		RingBuffer<Integer>.Reader fast = buffer.reader();
+		RingBuffer<Integer>.Reader slow = buffer.reader();
+		for (int i = 0; i < 4; i ++) {
+			assertTrue(buffer.publish(i, 0, TimeUnit.MILLISECONDS));
+		}
+		assertEquals(4, fast.drain(item -> {}, 0, TimeUnit.MILLISECONDS));
+
+		// 最慢的读取者没有取走数据，队列仍然是满的
+		assertFalse(buffer.publish(4, 10, TimeUnit.MILLISECONDS));
+
+		// 所有读取者都取走以后槽位被释放
+		List<Integer> items = new ArrayList<>();
+		assertEquals(4, slow.drain(items::add, 0, TimeUnit.MILLISECONDS));
+		assertEquals(0, buffer.size());
+		assertTrue(buffer.publish(4, 0, TimeUnit.MILLISECONDS));
+		assertEquals(1, fast.drain(items::add, 0, TimeUnit.MILLISECONDS));
+		assertEquals(1, slow.drain(items::add, 0, TimeUnit.MILLISECONDS));
+		assertEquals("[0, 1, 2, 3, 4, 4]", items.toString());
+	}
+
+	@Test
+	public void testWeightLimit() throws InterruptedException {
+		RingBuffer<Integer> buffer = create(16, 10);
+		RingBuffer<Integer>.Reader reader = buffer.reader();
+		assertTrue(buffer.publish(6, 0, TimeUnit.MILLISECONDS));
+		assertTrue(buffer.publish(4, 0, TimeUnit.MILLISECONDS));
+		assertEquals(10, buffer.size());
+		assertFalse(buffer.publish(1, 10, TimeUnit.MILLISECONDS));
+
+		assertEquals(2, reader.drain(item -> {}, 0, TimeUnit.MILLISECONDS));
+		assertEquals(0, buffer.size());
+		// 队列为空时超过上限的单条数据也可以写入
+		assertTrue(buffer.publish(20, 0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testDrainTimeout() throws InterruptedException {
+		RingBuffer<Integer> buffer = create(4, 0);
+		RingBuffer<Integer>.Reader reader = buffer.reader();
+		long start = System.nanoTime();
+		assertEquals(0, reader.drain(item -> {}, 20, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+	}
+
+	@Test
+	public void testMultiProducer() throws Exception {
+		RingBuffer<Integer> buffer = create(64, 0);
+		RingBuffer<Integer>.Reader reader = buffer.reader();
+		int producers = 4;
+		int count = 10000;
+		ExecutorService executor = Executors.newFixedThreadPool(producers);
+		CountDownLatch latch = new CountDownLatch(producers);
+		try {
+			for (int p = 0; p < producers; p ++) {
+				executor.execute(() -> {
+					try {
+						for (int i = 0; i < count; i ++) {
+							buffer.publish(1, 10, TimeUnit.SECONDS);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						latch.countDown();
+					}
+				});
+			}
+
+			long[] sum = {0};
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			while (sum[0] < producers * count && System.nanoTime() < deadline) {
+				reader.drain(item -> sum[0] += item, 10, TimeUnit.MILLISECONDS);
+			}
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(producers * count, sum[0]);
+			assertEquals(0, buffer.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private RingBuffer<Integer> create(int size, long limit) {
+		return new RingBuffer<>(size, limit, Integer::intValue, RingBuffer.waitStrategy("blocking"));
+	}
+
+}
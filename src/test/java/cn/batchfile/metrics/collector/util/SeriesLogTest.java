@@ -0,0 +1,189 @@
+package cn.batchfile.metrics.collector.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SeriesLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File dir;
+	private SeriesLog log;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = folder.getRoot();
+		log = open(new ArrayList<>());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		log.close();
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		// 超过一个批次的记录分成多个批次写入
+		append(1, 10000);
+		append(10001, 3);
+		log.force();
+		log.close();
+
+		List<long[]> entries = new ArrayList<>();
+		log = open(entries);
+		assertEquals(10003, entries.size());
+		for (int i = 0; i < entries.size(); i ++) {
+			assertEquals(i + 1, entries.get(i)[0]);
+			assertEquals(i + 1, entries.get(i)[2]);
+		}
+	}
+
+	@Test
+	public void testTornWrite() throws IOException {
+		append(1, 10);
+		append(11, 10);
+		log.close();
+		long size = wal().length();
+
+		// 最后一个批次只写了一部分
+		truncate(size - 7);
+		List<long[]> entries = new ArrayList<>();
+		log = open(entries);
+		assertEquals(10, entries.size());
+		assertEquals(size / 2, wal().length());
+
+		// 截断以后继续追加
+		append(21, 5);
+		log.close();
+		entries.clear();
+		log = open(entries);
+		assertEquals(15, entries.size());
+		assertEquals(21, entries.get(10)[0]);
+	}
+
+	@Test
+	public void testCorruptBatch() throws IOException {
+		append(1, 10);
+		append(11, 10);
+		append(21, 10);
+		log.close();
+
+		// 第二个批次的一个字节被改写，从这个批次开始丢弃
+		long batch = wal().length() / 3;
+		try (RandomAccessFile file = new RandomAccessFile(wal(), "rw")) {
+			file.seek(batch + 20);
+			int b = file.read();
+			file.seek(batch + 20);
+			file.write(b ^ 0xff);
+		}
+		List<long[]> entries = new ArrayList<>();
+		log = open(entries);
+		assertEquals(10, entries.size());
+		assertEquals(batch, wal().length());
+	}
+
+	@Test
+	public void testGarbageHeader() throws IOException {
+		append(1, 10);
+		log.close();
+		try (RandomAccessFile file = new RandomAccessFile(wal(), "rw")) {
+			file.seek(file.length());
+			file.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13});
+		}
+		List<long[]> entries = new ArrayList<>();
+		log = open(entries);
+		assertEquals(10, entries.size());
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		assertNull(log.openSnapshot());
+		append(1, 10);
+
+		SeriesLog.SnapshotWriter writer = log.snapshot();
+		ByteBuffer buffer = ByteBuffer.allocate(100 * SeriesLog.ENTRY);
+		for (int i = 1; i <= 100; i ++) {
+			SeriesLog.write(buffer, i * 2, i, i, i, -i);
+		}
+		writer.write(buffer);
+		writer.commit();
+		// 写入快照以后清空日志
+		assertEquals(0, log.getWalSize());
+
+		SeriesLog.Snapshot snapshot = log.openSnapshot();
+		assertEquals(100, snapshot.size());
+		assertTrue(snapshot.verify());
+		long index = snapshot.find(20);
+		assertEquals(9, index);
+		assertEquals(10, snapshot.check(index));
+		assertEquals(-10, snapshot.value(index, 1), 0);
+		assertEquals(-1, snapshot.find(21));
+		long[] count = {0};
+		snapshot.forEach((id, check, time, v0, v1) -> count[0] ++);
+		assertEquals(100, count[0]);
+	}
+
+	@Test
+	public void testCorruptSnapshot() throws IOException {
+		SeriesLog.SnapshotWriter writer = log.snapshot();
+		ByteBuffer buffer = ByteBuffer.allocate(10 * SeriesLog.ENTRY);
+		for (int i = 1; i <= 10; i ++) {
+			SeriesLog.write(buffer, i, i, i, i, i);
+		}
+		writer.write(buffer);
+		writer.commit();
+
+		File snapshot = new File(dir, "snapshot.bin");
+		try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+			file.seek(SeriesLog.HEADER + 30);
+			file.write(0x7f);
+		}
+		assertFalse(log.openSnapshot().verify());
+
+		// 长度与记录数量不一致
+		try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+			file.setLength(file.length() - 1);
+		}
+		assertNull(log.openSnapshot());
+	}
+
+	private SeriesLog open(List<long[]> entries) throws IOException {
+		SeriesLog log = new SeriesLog(dir);
+		log.replayWal((id, check, time, v0, v1) -> entries.add(new long[] {id, check, time}));
+		return log;
+	}
+
+	private void append(long first, int count) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(count * SeriesLog.ENTRY);
+		for (long id = first; id < first + count; id ++) {
+			SeriesLog.write(buffer, id, id * 31, id, id, id);
+		}
+		log.append(buffer);
+	}
+
+	private File wal() {
+		return new File(dir, "wal.bin");
+	}
+
+	private void truncate(long length) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(wal(), "rw")) {
+			file.setLength(length);
+		}
+	}
+
+}